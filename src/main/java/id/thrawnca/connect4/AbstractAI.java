@@ -1,6 +1,14 @@
 package id.thrawnca.connect4;
 
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.SearchTrace.Event;
 
 /**
  * Subclasses of this class represent an artificial intelligence module,
@@ -20,16 +28,68 @@ import static id.thrawnca.connect4.ConnectFourGrid.Colour;
  *    <dd>A move that does not create a threat, but makes an unblockable n-way
  * or consequential available next turn.</dd>
  *</dl>
+ *
+ *<p>Sets of columns are returned as <code>ColumnSet</code> bitmasks.
+ *
+ *<p>The analysis helpers try out hypothetical moves directly on the grid
+ * they are given, undoing each one before returning, so
+ * <code>chooseColumn</code> implementations should pass them a private
+ * clone rather than the grid being displayed.
  */
 public abstract class AbstractAI {
 
-  /** Whether or not to generate debugging messages. */
+  /** Whether or not to record search-trace events. */
   public static boolean debug = Boolean.valueOf(System.getProperty("connect4.debug", "false"));
 
   protected final ConnectFourGrid grid;
 
   protected final Colour aiColour;
 
+  /** Cache of search results, or null if this AI does not cache them. */
+  private TranspositionTable transpositionTable;
+
+  /** Cache of threat-analysis results, or null if this AI does not cache them. */
+  private AnalysisCache analysisCache;
+
+  /** The value of <code>maxChainDepth</code> for which consequentials are followed indefinitely. */
+  public static final int UNLIMITED_CHAIN = Integer.MAX_VALUE;
+
+  /** The most threats a consequential may chain together before it is discounted. */
+  private int maxChainDepth = UNLIMITED_CHAIN;
+
+  /** A tighter limit than <code>maxChainDepth</code> for the search under way, if any. */
+  private volatile int chainLimit = UNLIMITED_CHAIN;
+
+  /** Set when a chain was discounted because it reached the limit in force. */
+  private volatile boolean chainCut;
+
+  /** Solver for positions with few cells left, or null if this AI has none. */
+  private EndgameSolver endgameSolver;
+
+  /** The number of empty cells below which the endgame solver takes over. */
+  private int endgameCells;
+
+  /** The background analysis of the opponent's possible moves, or null. */
+  private ForkJoinTask<?> ponderTask;
+
+  /** Set to ask the background analysis to finish. */
+  private volatile boolean ponderStopped;
+
+  /** The <code>System.nanoTime()</code> at which searches stop, if <code>timed</code>. */
+  private volatile long deadline;
+
+  /** Set while searches should stop at <code>deadline</code>. */
+  private volatile boolean timed;
+
+  /** The source of this AI's random choices between equally good columns. */
+  private SplittableRandom random = new SplittableRandom();
+
+  /** The column being chosen by <code>chooseColumnAsync</code>, or null. */
+  private volatile CompletableFuture<Integer> asyncChoice;
+
+  /** Told of the progress of <code>asyncChoice</code>, or null. */
+  private volatile ProgressListener progressListener;
+
   /**
    * Constructs a new AI choosing moves for <code>aiColour</code>, on
    * <code>grid</code>.
@@ -39,52 +99,346 @@ public abstract class AbstractAI {
     this.aiColour = aiColour;
   }
 
+  /** @return This AI's cache of search results, or null if it has none. */
+  public TranspositionTable getTranspositionTable() {
+    return transpositionTable;
+  }
+
+  /**
+   * Sets the cache of search results used by this AI, if it searches. A
+   * table may be shared between AIs, even while they search at the same
+   * time, since it is lock-free and verifies each entry's key. Tables
+   * created by <code>TranspositionTable.offHeap</code> use direct memory,
+   * so those larger than the JVM's default limit need
+   * <code>-XX:MaxDirectMemorySize</code> raised to match.
+   * @param transpositionTable The table to use, or null to disable caching.
+   */
+  public void setTranspositionTable(final TranspositionTable transpositionTable) {
+    this.transpositionTable = transpositionTable;
+  }
+
+  /** @return This AI's cache of threat-analysis results, or null if it has none. */
+  public AnalysisCache getAnalysisCache() {
+    return analysisCache;
+  }
+
+  /**
+   * Sets the cache of threat-analysis results used by this AI. Results are
+   * keyed on position and grid size, so they remain valid from move to
+   * move, and a cache may be shared between AIs.
+   * @param analysisCache The cache to use, or null to disable caching.
+   */
+  public void setAnalysisCache(final AnalysisCache analysisCache) {
+    this.analysisCache = analysisCache;
+  }
+
+  /** @return The most threats a consequential may chain together. */
+  public int getMaxChainDepth() {
+    return maxChainDepth;
+  }
+
+  /**
+   * Limits the length of the consequentials this AI looks for, to bound the
+   * time taken on crowded grids. A depth of 1 finds only threats whose
+   * block gives an immediate win or n-way; each further level allows one
+   * more forcing threat in the chain. Threat-analysis results are cached
+   * only while the depth is <code>UNLIMITED_CHAIN</code>, the default, since
+   * they would otherwise depend on the limit.
+   * @param maxChainDepth The limit, at least 1.
+   */
+  public void setMaxChainDepth(final int maxChainDepth) {
+    if (maxChainDepth < 1) {
+      throw new IllegalArgumentException("Chain depth must be positive: " + maxChainDepth);
+    }
+    this.maxChainDepth = maxChainDepth;
+  }
+
+  /** @return This AI's endgame solver, or null if it has none. */
+  public EndgameSolver getEndgameSolver() {
+    return endgameSolver;
+  }
+
+  /** @return The number of empty cells below which the endgame solver takes over. */
+  public int getEndgameCells() {
+    return endgameCells;
+  }
+
+  /**
+   * Sets the solver this AI hands over to once fewer than
+   * <code>endgameCells</code> cells are empty, so that it plays the endgame
+   * perfectly. Every AI consults the solver before its own analysis; only
+   * MaxAI has one by default. The solver's time grows rapidly with the
+   * number of empty cells, so the threshold should be kept small.
+   * @param endgameSolver The solver to use, or null to play every position
+   * heuristically.
+   * @param endgameCells The threshold, at least 0.
+   */
+  public void setEndgameSolver(final EndgameSolver endgameSolver, final int endgameCells) {
+    if (endgameCells < 0) {
+      throw new IllegalArgumentException("Endgame cells must not be negative: " + endgameCells);
+    }
+    this.endgameSolver = endgameSolver;
+    this.endgameCells = endgameCells;
+  }
+
+  /**
+   * Sets the source of this AI's random choices between equally good
+   * columns; one with a fixed seed makes its games reproducible. By default
+   * each AI has its own, unseeded. Only the thread choosing a column uses
+   * it, never pondering, so it need not be shared with any other AI, and
+   * seeded games repeat whether or not the AI ponders.
+   */
+  public void setRandom(final SplittableRandom random) {
+    this.random = random;
+  }
+
+  /** @return The source of this AI's random choices. */
+  protected final SplittableRandom getRandom() {
+    return random;
+  }
+
   /**
    * Selects a column for the AI to play in.
    * @return The column chosen by this AI.
    */
   public abstract int chooseColumn();
 
+  /**
+   * Selects a column for the AI to play in, taking about
+   * <code>budget</code> to do so. AIs that search more deeply given more
+   * time override this; by default it is the same as
+   * <code>chooseColumn()</code>, and the budget is ignored.
+   * @param budget The time to take.
+   * @return The column chosen by this AI.
+   */
+  public int chooseColumn(final Duration budget) {
+    return chooseColumn();
+  }
+
+  /**
+   * As <code>chooseColumnAsync(budget, listener)</code>, choosing as
+   * <code>chooseColumn()</code> does.
+   */
+  public CompletableFuture<Integer> chooseColumnAsync(final ProgressListener listener) {
+    return chooseColumnAsync(null, listener);
+  }
+
+  /**
+   * Starts choosing a column in the common <code>ForkJoinPool</code>, first
+   * stopping any pondering. Cancelling the returned future stops the search
+   * at its next check, leaving the grid as it was. An AI chooses only one
+   * column at a time, so the grid must not change, nor another choice begin,
+   * until the future completes or is cancelled.
+   * @param budget The time to take, as for <code>chooseColumn(budget)</code>,
+   * or null to choose as <code>chooseColumn()</code> does.
+   * @param listener Told of the search's progress, or null.
+   * @return The column that will be chosen.
+   */
+  public CompletableFuture<Integer> chooseColumnAsync(
+      final Duration budget,
+      final ProgressListener listener) {
+    stopPondering();
+    final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+    ForkJoinPool.commonPool().execute(new Runnable() {
+        public void run() {
+          if (result.isDone()) return;
+          asyncChoice = result;
+          progressListener = listener;
+          try {
+            result.complete((budget == null)? chooseColumn() : chooseColumn(budget));
+          } catch (Throwable e) {
+            // including the CancellationException of a cancelled search
+            result.completeExceptionally(e);
+          } finally {
+            asyncChoice = null;
+            progressListener = null;
+          }
+        }
+      }
+    );
+    return result;
+  }
+
+  /**
+   * Throws a <code>CancellationException</code> if the column being chosen
+   * by <code>chooseColumnAsync</code> is no longer wanted, if pondering
+   * has been asked to stop, or if the deadline set by
+   * <code>setDeadline</code> has passed. Searches call this often enough to
+   * stop promptly, and so must leave their grids as they were whenever it
+   * throws.
+   */
+  protected final void checkCancelled() {
+    CompletableFuture<Integer> choice = asyncChoice;
+    if (choice != null && choice.isCancelled() || ponderStopped || isPastDeadline()) {
+      throw new CancellationException();
+    }
+  }
+
+  /**
+   * Makes <code>checkCancelled</code> throw once <code>System.nanoTime()</code>
+   * reaches <code>deadline</code>, until <code>clearDeadline</code> is called.
+   */
+  protected final void setDeadline(final long deadline) {
+    this.deadline = deadline;
+    timed = true;
+  }
+
+  /** Undoes <code>setDeadline</code>. */
+  protected final void clearDeadline() {
+    timed = false;
+  }
+
+  /** @return Whether the deadline set by <code>setDeadline</code> has passed. */
+  protected final boolean isPastDeadline() {
+    return timed && System.nanoTime() - deadline >= 0;
+  }
+
+  /**
+   * Limits consequentials to <code>depth</code> threats for the searches
+   * that follow, if that is fewer than <code>getMaxChainDepth()</code>, and
+   * clears the record kept for <code>wasChainCut</code>. Pass
+   * <code>UNLIMITED_CHAIN</code> to lift the limit again.
+   */
+  protected final void limitChain(final int depth) {
+    chainLimit = depth;
+    chainCut = false;
+  }
+
+  /**
+   * @return Whether any chain has been discounted for reaching the chain
+   * depth limit since <code>limitChain</code> was last called; if not, a
+   * higher limit would have found nothing more.
+   */
+  protected final boolean wasChainCut() {
+    return chainCut;
+  }
+
+  /** @return The chain depth limit in force, the lower of the two limits set. */
+  private int chainDepthLimit() {
+    return Math.min(maxChainDepth, chainLimit);
+  }
+
+  /**
+   * Helper for <code>isConsequential</code>. Checks whether a chain of
+   * <code>chainDepth</code> threats may grow, noting when it may not.
+   */
+  private boolean canExtendChain(final int chainDepth) {
+    if (chainDepth < chainDepthLimit()) return true;
+    chainCut = true;
+    return false;
+  }
+
+  /**
+   * Tells the listener passed to <code>chooseColumnAsync</code>, if any, of
+   * the search's progress.
+   */
+  protected final void reportProgress(final int depth, final long nodes, final int column) {
+    ProgressListener listener = progressListener;
+    if (listener != null) listener.progress(depth, nodes, column);
+  }
+
+  /**
+   * Starts analysing, in the common <code>ForkJoinPool</code>, the positions
+   * the opponent could reach with its next move, so that the caches this AI
+   * consults are ready when it is asked to choose its own. Call this once
+   * the AI has moved, and <code>stopPondering</code> before asking it for
+   * another column or changing the grid other than by the opponent's move.
+   */
+  public void startPondering() {
+    stopPondering();
+    final ConnectFourGrid position = grid.clone();
+    ponderStopped = false;
+    ponderTask = ForkJoinPool.commonPool().submit(new Runnable() {
+        public void run() { ponder(position); }
+      }
+    );
+  }
+
+  /**
+   * Stops any background analysis started by <code>startPondering</code>,
+   * waiting for it to finish. Pondering checks for this as often as
+   * searches check for cancellation, so the wait is short.
+   */
+  public void stopPondering() {
+    if (ponderTask == null) return;
+    ponderStopped = true;
+    ponderTask.quietlyJoin();
+    ponderTask = null;
+    ponderStopped = false;
+  }
+
+  /** @return Whether background analysis has been started and not stopped. */
+  public boolean isPondering() {
+    return ponderTask != null;
+  }
+
+  /**
+   * Analyses <code>position</code>, a private copy of the grid with the
+   * opponent to move, until the analysis is complete or
+   * <code>isPonderingStopped</code>, at which point
+   * <code>checkCancelled</code> throws. AIs with caches worth filling override
+   * this; by default it does nothing.
+   */
+  protected void ponder(final ConnectFourGrid position) {
+  }
+
+  /** @return Whether background analysis has been asked to finish. */
+  protected final boolean isPonderingStopped() {
+    return ponderStopped;
+  }
+
   /**
    * Helper for <code>chooseColumn</code>. Selects a random, non-full column
    * and returns its index.
    */
-  protected static int pickColumn(final ConnectFourGrid grid) {
-    int column;
-    do {
-      column = (int) (Math.random() * grid.getColumns());
-    } while (grid.getNextRow(column) == -1);
-    return column;
+  protected int pickColumn(final ConnectFourGrid grid) {
+    return pick(grid.getOpenColumns());
+  }
+
+  /** @return A member of <code>columns</code>, chosen at random. */
+  protected final int pick(final int columns) {
+    return ColumnSet.pick(columns, random);
+  }
+
+  /**
+   * Helper for <code>chooseColumn</code>. Solves <code>grid</code> exactly,
+   * if this AI has an endgame solver and few enough cells remain.
+   * @return The <code>ColumnSet</code> of columns achieving the best
+   * outcome for the AI, or <code>ColumnSet.EMPTY</code> if the position is
+   * not solved.
+   */
+  protected int solveEndgame(final ConnectFourGrid grid) {
+    if (endgameSolver == null || grid.isFull()) return ColumnSet.EMPTY;
+    if (grid.getRows() * grid.getColumns() - grid.getMoveCount() >= endgameCells) {
+      return ColumnSet.EMPTY;
+    }
+
+    int columns = endgameSolver.bestColumns(grid, aiColour);
+    trace(Event.Endgame, aiColour, ColumnSet.first(columns));
+    return columns;
   }
 
   /**
    * Helper for <code>chooseColumn</code>. Finds and returns the indices of
    * all columns of <code>grid</code> in which <code>colour</code> could win
    * immediately by playing.
-   * @return An array containing the indices of columns in which the specified
-   * colour could win by playing. NB This array will be full; its length will
-   * be the number of such columns.
+   * @return The <code>ColumnSet</code> of columns in which the specified
+   * colour could win by playing.
    */
-  protected static int[] getThreats(
+  protected static int getThreats(
       final ConnectFourGrid grid,
       final Colour colour) {
-    int[] threatColumns = new int[grid.getColumns()]; // threat positions
-    int threats = 0;                  // threat count
+    int threats = ColumnSet.EMPTY;
 
     // check each column
     for (int i = 0; i < grid.getColumns(); i++) {
       if (isThreat(grid, i, colour)) {
-        threatColumns[threats++] = i; // found connect 4; record column
-        debug(colour+" threat @ "+i);
+        threats = ColumnSet.with(threats, i); // found connect 4; record column
+        if (debug) SearchTrace.standardOut().record(null, Event.Threat, colour, i);
       }
     }
 
-    // copy threat indices into array of exact length
-    int[] returnArray = new int[threats];
-    System.arraycopy(threatColumns, 0, returnArray, 0, threats);
-
-    // all done
-    return returnArray;
+    return threats;
   }
 
   /**
@@ -97,114 +451,213 @@ public abstract class AbstractAI {
       final ConnectFourGrid grid,
       final int column,
       final Colour colour) {
-    // ensure column is non-full
-    int row = grid.getNextRow(column);
-    if (row == -1) return false;
-
-    // create a test environment
-    ConnectFourGrid alternateGrid = (ConnectFourGrid) grid.clone();
-
-    // add piece to testing grid and check for Connect 4s
-    alternateGrid.addPiece(colour, column);
-    return alternateGrid.connectsFour(row, column);
+    // only the lines through the new piece need checking
+    return grid.wouldConnectFour(colour, column);
   }
 
   /**
    * Finds all reasonable moves (ie non-full & not giving an immediate
    * opponent win).
-   * @return The indices of all columns in which the AI could reasonably play.
-   * This array will be full.
+   * @return The <code>ColumnSet</code> of all columns in which the AI could
+   * reasonably play.
    */
-  private static int[] getPotentialMoves(
+  private static int getPotentialMoves(
       final ConnectFourGrid grid,
       final Colour colour) {
-    final int[] moves = new int[grid.getColumns()];
-    int moveCount = 0;
+    int moves = ColumnSet.EMPTY;
 
     for (int i = 0; i < grid.getColumns(); i++) {
       // reject full columns
       if (grid.getNextRow(i) == -1) continue;
 
       // reject columns handing a win to one's opponent
-      ConnectFourGrid alternateGrid = (ConnectFourGrid) grid.clone();
-      alternateGrid.addPiece(colour, i);
+      grid.addPiece(colour, i);
+      boolean givesWin = !ColumnSet.isEmpty(getThreats(grid, colour.opposite()));
+      grid.undoMove();
 
-      if (getThreats(alternateGrid, colour.opposite()).length > 0) continue;
+      if (givesWin) continue;
 
-      moves[moveCount++] = i;
+      moves = ColumnSet.with(moves, i);
     }
 
-    return crunch(moves, moveCount);
+    return moves;
   }
 
   /**
-   * Helper for <code>chooseColumn</code>. Finds and returns the index of a
-   * column that would give the specified colour an n-way or consequent win on
-   * <code>grid</code>, or -1 if no such column exists.
+   * Helper for <code>chooseColumn</code>. Classifies the moves available to
+   * <code>colour</code> on <code>grid</code>: its threats, n-ways and
+   * consequentials. N-ways and consequentials both start by trying a piece
+   * in each safe column and looking for the threats it makes, so they are
+   * found together, in a single pass; whether blocking would be pointless
+   * is checked in the same pass, once per column found, for both top-level
+   * and other results.
+   * @param consequentials Whether to look for consequentials, which takes a
+   * further search; if not, none are reported.
    */
-  protected int[] findNWays(
+  protected Classification classify(
       final ConnectFourGrid grid,
-      final Colour colour) {
-    //debug("findNWays for "+colour.toString());
-    return getNWays(grid, colour, true);
+      final Colour colour,
+      final boolean consequentials) {
+    checkCancelled();
+    final int threats = getThreats(grid, colour);
+    final boolean opponent = colour == aiColour.opposite();
+
+    // reuse an earlier pass over this position, if there was one
+    final boolean caching = analysisCache != null && chainDepthLimit() == UNLIMITED_CHAIN;
+    if (caching) {
+      long nWays = analysisCache.get(AnalysisCache.key(grid, AnalysisCache.NWAYS, colour));
+      long nWaysUnblockable = analysisCache.get(AnalysisCache.key(grid, AnalysisCache.UNBLOCKABLE_NWAYS, colour));
+      long found = ColumnSet.EMPTY;
+      long foundUnblockable = ColumnSet.EMPTY;
+      if (consequentials) {
+        found = analysisCache.get(AnalysisCache.key(grid, AnalysisCache.CONSEQUENTIALS, colour));
+        foundUnblockable = analysisCache.get(AnalysisCache.key(grid, AnalysisCache.UNBLOCKABLE_CONSEQUENTIALS, colour));
+      }
+      if (nWays != AnalysisCache.MISS && nWaysUnblockable != AnalysisCache.MISS
+          && found != AnalysisCache.MISS && foundUnblockable != AnalysisCache.MISS) {
+        return new Classification(threats, (int) nWays, (int) found,
+            (int) (nWaysUnblockable | foundUnblockable), opponent);
+      }
+    }
+
+    if (consequentials) trace(Event.ConsequentialSearch, colour, -1);
+    int nWays = ColumnSet.EMPTY;
+    int found = ColumnSet.EMPTY;
+    int unblockable = ColumnSet.EMPTY;
+
+    int columns = getPotentialMoves(grid, colour);  // get safe moves
+    for (int column = ColumnSet.first(columns); column != -1; column = ColumnSet.next(columns, column)) {
+      // add one of our pieces and check for threats
+      grid.addPiece(colour, column);
+      boolean nWay;
+      boolean consequential;
+      try {
+        int ourWins = getThreats(grid, colour);
+
+        // if we could score multiple wins, this column gives an n-way
+        nWay = ColumnSet.size(ourWins) > 1;
+
+        // if we have a threat: check whether block gives n-way/consequential
+        consequential = consequentials && !ColumnSet.isEmpty(ourWins)
+            && isConsequential(grid, colour, column, ColumnSet.first(ourWins), 1);
+      } finally {
+        grid.undoMove();
+      }
+
+      if (nWay) {
+        // threatening an n-way
+        trace(Event.NWay, colour, column);
+        nWays = ColumnSet.with(nWays, column);
+      }
+      if (consequential) found = ColumnSet.with(found, column);
+
+      /*
+       * If opponent is threatening, and block is impossible, don't
+       * try; it just wastes time and makes the move more obvious.
+       *
+       * This only applies to top-level results, ie those
+       * determining the AI's immediate move, because it has the
+       * effect of concealing the opponent's threatened n-ways and
+       * consequentials, and is therefore undesirable if those threats
+       * are themselves consequent on something blockable.
+       *
+       * In altering this code, remember that exclusion of useless
+       * moves is not necessary, and erring on the side of caution is
+       * advised.
+       */
+      if ((nWay || consequential) && isUnblockable(grid, column, colour)) {
+        // nothing can be done
+        if (opponent) trace(Event.Unblockable, colour, column);
+        unblockable = ColumnSet.with(unblockable, column);
+      }
+    }
+
+    if (caching) {
+      analysisCache.put(AnalysisCache.key(grid, AnalysisCache.NWAYS, colour), nWays);
+      analysisCache.put(AnalysisCache.key(grid, AnalysisCache.UNBLOCKABLE_NWAYS, colour), nWays & unblockable);
+      if (consequentials) {
+        analysisCache.put(AnalysisCache.key(grid, AnalysisCache.CONSEQUENTIALS, colour), found);
+        analysisCache.put(AnalysisCache.key(grid, AnalysisCache.UNBLOCKABLE_CONSEQUENTIALS, colour), found & unblockable);
+      }
+    }
+    return new Classification(threats, nWays, found, unblockable, opponent);
   }
 
   /**
-   * The 'workhorse' of <code>findNWay<code>.
-   * @param topLevel Whether this call is a top-level call, ie whether it is
-   * an analysis of this move or a future one; this is important for not
-   * attempting to block unblockable moves.
+   * Helper for <code>classify</code>. Checks whether a piece just played by
+   * <code>colour</code> in <code>column</code>, giving a threat in
+   * <code>threatColumn</code>, is a consequential: one where the opponent's
+   * block allows a win, an n-way or a further consequential.
+   * @param chainDepth The number of threats in the chain so far, including
+   * this one.
    */
-  private int[] getNWays(
+  private boolean isConsequential(
       final ConnectFourGrid grid,
       final Colour colour,
-      final boolean topLevel) {
-    final int[] nWays = new int[grid.getColumns()];
-    int nWayCount = 0;
-
-    ConnectFourGrid alternateGrid;
+      final int column,
+      final int threatColumn,
+      final int chainDepth) {
+    /*
+     * There can be only one threat at this point; a move allowing more
+     * would have been detected as an n-way.
+     *
+     * Experimentally block the envisaged threat & examine the results.
+     */
+    grid.addPiece(colour.opposite(), threatColumn);
+    try {
+      // if AI immediately has a threat, victory!
+      if (isThreat(grid, threatColumn, colour)) {
+        // threat exists after block; consequential win exists
+        trace(Event.Consequential, colour, column);
+        return true;
+      }
+      if (isNWay(grid, threatColumn, colour)  // check for consequent n-way
+          ||
+          // check for consequent consequential, if the chain may grow
+          canExtendChain(chainDepth) && hasConsequential(grid, colour, chainDepth + 1)
+        ) {
+        // blocked threat has allowed n-way or consequential
+        trace(Event.ConsequentialBlock, colour, threatColumn);
+        return true;
+      }
+      return false;
+    } finally {
+      grid.undoMove();
+    }
+  }
 
-    // check each column
-    int[] columns = getPotentialMoves(grid, colour);  // get safe moves
-    for (int i = 0; i < columns.length; i++) {
-      // if we could score multiple wins, return this column
-      if (isNWay(grid, i, colour)) {
-        // threatening an n-way
-        debug(aiColour+" found threatened n-way for "+colour.toString()+" at "+columns[i]);
+  /**
+   * Helper for <code>isConsequential</code>. Checks whether
+   * <code>colour</code> has any consequential on <code>grid</code>, stopping
+   * at the first found; blockability is irrelevant below the top level, so
+   * it is not checked.
+   * @param chainDepth The number of threats the chain would have, including
+   * the one to be found here.
+   */
+  private boolean hasConsequential(
+      final ConnectFourGrid grid,
+      final Colour colour,
+      final int chainDepth) {
+    checkCancelled();
+    if (analysisCache != null && chainDepthLimit() == UNLIMITED_CHAIN) {
+      long found = analysisCache.get(AnalysisCache.key(grid, AnalysisCache.CONSEQUENTIALS, colour));
+      if (found != AnalysisCache.MISS) return found != ColumnSet.EMPTY;
+    }
 
-        /*
-         * If opponent is threatening, and block is impossible, don't
-         * try; it just wastes time and makes the move more obvious.
-         *
-         * This only applies to top-level calls, ie those
-         * determining the AI's immediate move, because it has the
-         * effect of concealing the opponent's threatened n-ways, and is
-         * therefore undesirable if those threats are consequent on
-         * something blockable.
-         *
-         * In altering this code, remember that exclusion of useless
-         * moves is not necessary, and erring on the side of caution is
-         * advised.
-         */
-        if (topLevel && colour == aiColour.opposite()) {
-          // reset testing grid to current state
-          alternateGrid = (ConnectFourGrid) grid.clone();
-
-          // add a piece of the AI's colour instead
-          alternateGrid.addPiece(colour.opposite(), columns[i]);
-          if (getThreats(alternateGrid, colour).length > 0) {
-            // nothing can be done
-            debug("but can't do anything");
-            continue;
-          }
+    int columns = getPotentialMoves(grid, colour);  // get safe moves
+    for (int column = ColumnSet.first(columns); column != -1; column = ColumnSet.next(columns, column)) {
+      grid.addPiece(colour, column);
+      try {
+        int ourWins = getThreats(grid, colour);
+        if (!ColumnSet.isEmpty(ourWins)
+            && isConsequential(grid, colour, column, ColumnSet.first(ourWins), chainDepth)) {
+          return true;
         }
-
-        nWays[nWayCount++] = columns[i];
+      } finally {
+        grid.undoMove();
       }
     }
-
-    // fit n-ways into array and return
-    return crunch(nWays, nWayCount);
+    return false;
   }
 
   /**
@@ -221,106 +674,50 @@ public abstract class AbstractAI {
       return false;
     }
 
-    // create a test environment
-    final ConnectFourGrid alternateGrid = (ConnectFourGrid) grid.clone();
-
-    // add piece to testing grid and check for multiple threats
-    alternateGrid.addPiece(colour, column);
-    return getThreats(alternateGrid, colour).length > 1;
+    // add piece experimentally and check for multiple threats
+    grid.addPiece(colour, column);
+    boolean nWay = ColumnSet.size(getThreats(grid, colour)) > 1;
+    grid.undoMove();
+    return nWay;
   }
 
   /**
-   * Finds 'consequential wins', ie columns in which a play would create
-   * a threat, the blocking of which by the opponent would allow an AI win
-   * or another AI threat, the blocking of which...etc.
+   * Checks whether a block by the opponent of <code>colour</code> in
+   * <code>column</code> would still leave <code>colour</code> with a
+   * threat, ie whether blocking there is pointless.
    */
-  protected int[] findConsequentials(
+  private static boolean isUnblockable(
       final ConnectFourGrid grid,
+      final int column,
       final Colour colour) {
-    debug("findConsequentials for " + colour);
-    return getConsequentials(grid, colour, true);
+    // add a piece of the opposing colour instead
+    grid.addPiece(colour.opposite(), column);
+    boolean unblockable = !ColumnSet.isEmpty(getThreats(grid, colour));
+    grid.undoMove();
+    return unblockable;
   }
 
   /**
-   * @param topLevel Whether this call is a top-level call, ie whether it is
-   * an analysis of this move or of a future one; this is important for not
-   * attempting to block unblockable moves.
+   * Helper for <code>chooseColumn</code>. Finds and returns the
+   * <code>ColumnSet</code> of columns that would give the specified colour an
+   * n-way on <code>grid</code>. Callers wanting consequentials too should
+   * <code>classify</code> the grid once instead.
    */
-  private int[] getConsequentials(
+  protected int findNWays(
       final ConnectFourGrid grid,
-      final Colour colour,
-      final boolean topLevel) {
-    final int[] consequentials = new int[grid.getColumns()];
-    int consCount = 0;
-
-    ConnectFourGrid alternateGrid;
-
-    int[] columns = getPotentialMoves(grid, colour);  // get safe moves
-    ColumnSearch:
-    for (int i = 0; i < columns.length; i++) {
-      // create testing grid
-      alternateGrid = (ConnectFourGrid) grid.clone();
-
-      // add one of our pieces and check for threats
-      alternateGrid.addPiece(colour, columns[i]);
-
-      // if we have a threat: check whether block gives n-way/consequential
-      int[] ourWins = getThreats(alternateGrid, colour);
-      if (ourWins.length > 0) {
-        /*
-         * There can be only one threat at this point; a move allowing more
-         * would have been detected as an n-way.
-         *
-         * Experimentally block the envisaged threat & examine the results.
-         */
-        int threatColumn = ourWins[0];
-        alternateGrid.addPiece(colour.opposite(), threatColumn);
-
-        // if AI immediately has a threat, victory!
-        if (isThreat(alternateGrid, threatColumn, colour)) {
-          // threat exists after block; consequential win exists
-          debug(aiColour+" found threatened consequent win for "+colour.toString()+" at "+columns[i]);
-        } else if (isNWay(alternateGrid, threatColumn, colour)  // check for consequent n-way
-            ||
-            // check for consequent consequential
-            (getConsequentials(alternateGrid, colour, false)).length > 0
-          ) {
-          // blocked threat has allowed n-way or consequential
-          debug("allowed by blocked threat at "+threatColumn);
-        } else continue ColumnSearch; // nothing found
-
-        /*
-         * If opponent is threatening, and block is impossible, don't
-         * try; it just wastes time and makes the move more obvious.
-         *
-         * This only applies to top-level calls, ie those
-         * determining the AI's immediate move, because it has the
-         * effect of concealing the opponent's threatened
-         * consequentials, and is therefore undesirable if those threats
-         * are themselves consequent on something blockable.
-         *
-         * In altering this code, remember that exclusion of useless
-         * moves is not necessary, and erring on the side of caution is
-         * advised.
-         */
-        if (topLevel && colour == aiColour.opposite()) {
-          alternateGrid = (ConnectFourGrid) grid.clone();
-
-          // add a piece of the computer's colour instead
-          alternateGrid.addPiece(colour.opposite(), columns[i]);
-          if (getThreats(alternateGrid, colour).length > 0) {
-            // opponent could now win directly
-            debug("but can't do anything");
-            continue;
-          }
-        }
-
-        consequentials[consCount++] = columns[i];
-      }
-    }
+      final Colour colour) {
+    return classify(grid, colour, false).getNWays(true);
+  }
 
-    // fit consequentials into array and return
-    return crunch(consequentials, consCount);
+  /**
+   * Finds 'consequential wins', ie columns in which a play would create
+   * a threat, the blocking of which by the opponent would allow an AI win
+   * or another AI threat, the blocking of which...etc.
+   */
+  protected int findConsequentials(
+      final ConnectFourGrid grid,
+      final Colour colour) {
+    return classify(grid, colour, true).getConsequentials(true);
   }
 
   /**
@@ -330,37 +727,36 @@ public abstract class AbstractAI {
    * Take advantage of setups for us, attempt to deny them to opponent
    * if feasible.
    */
-  protected int[] findSetups(final ConnectFourGrid grid, final Colour colour) {
-    return getSetups(grid, colour);
-  }
-
-  private int[] getSetups(final ConnectFourGrid grid, final Colour colour) {
-    final int[] setups = new int[grid.getColumns()];
-    int setupCount = 0;
-
-    ConnectFourGrid alternateGrid;
+  protected int findSetups(final ConnectFourGrid grid, final Colour colour) {
+    int setups = ColumnSet.EMPTY;
 
     // test each column to see if it constitutes a setup
-    int[] columns = getPotentialMoves(grid, colour);  // get safe moves
-    for (int i = 0; i < columns.length; i++) {
-      // create testing grid
-      alternateGrid = (ConnectFourGrid) grid.clone();
-
+    int columns = getPotentialMoves(grid, colour);  // get safe moves
+    for (int column = ColumnSet.first(columns); column != -1; column = ColumnSet.next(columns, column)) {
       // add a piece and test if a victory condition is now available
-      alternateGrid.addPiece(colour, columns[i]);
-
-      // if the new piece has created a threat for us, assume block
-      int[] threats = getThreats(alternateGrid, colour);
-      if (threats.length > 0) alternateGrid.addPiece(colour.opposite(), threats[0]);
+      grid.addPiece(colour, column);
+      boolean setup;
+      try {
+        // if the new piece has created a threat for us, assume block
+        int threats = getThreats(grid, colour);
+        if (!ColumnSet.isEmpty(threats)) grid.addPiece(colour.opposite(), ColumnSet.first(threats));
+        try {
+          // test for unblockable n-ways and consequentials
+          Classification next = classify(grid, colour, true);
+          setup = !ColumnSet.isEmpty(next.getNWays(false))
+                && ColumnSet.isEmpty(next.getNWays(true))
+              ||
+              !ColumnSet.isEmpty(next.getConsequentials(false))
+                && ColumnSet.isEmpty(next.getConsequentials(true));
+        } finally {
+          if (!ColumnSet.isEmpty(threats)) grid.undoMove();
+        }
+      } finally {
+        grid.undoMove();
+      }
 
-      // test for unblockable n-ways and consequentials
-      if (getNWays(alternateGrid, colour, false).length > 0
-            && getNWays(alternateGrid, colour, true).length == 0
-          ||
-          getConsequentials(alternateGrid, colour, false).length > 0
-            && getConsequentials(alternateGrid, colour, true).length == 0
-        ) {
-        debug(aiColour+" found setup for "+colour+" at "+columns[i]);
+      if (setup) {
+        trace(Event.Setup, colour, column);
 
         /*
          * If opponent is threatening, and block is impossible, don't
@@ -368,47 +764,46 @@ public abstract class AbstractAI {
          *
          * In altering this code, remember that exclusion of useless
          * moves is not necessary, and erring on the side of caution is
-         * advised.
+         * advised. Since the column is kept either way, the check is
+         * only worth making when it will be traced.
          */
-        if (colour == aiColour.opposite()) {
-          alternateGrid = (ConnectFourGrid) grid.clone();
-
+        if (debug && colour == aiColour.opposite()) {
           // add a piece of the computer's colour instead
-          alternateGrid.addPiece(colour.opposite(), columns[i]);
-          if (getThreats(alternateGrid, colour).length > 0
-              ||
-              getNWays(alternateGrid, colour, false).length > 0
-              ||
-              getConsequentials(alternateGrid, colour, false).length > 0
-            ) {
-            // opponent could still win
-            debug("but can't do anything");
-            //continue;
+          grid.addPiece(colour.opposite(), column);
+          try {
+            Classification blocked = classify(grid, colour, true);
+            if (!ColumnSet.isEmpty(blocked.getThreats())
+                ||
+                !ColumnSet.isEmpty(blocked.getNWays(false))
+                ||
+                !ColumnSet.isEmpty(blocked.getConsequentials(false))
+              ) {
+              // opponent could still win
+              trace(Event.Unblockable, colour, column);
+            }
+          } finally {
+            grid.undoMove();
           }
         }
 
-        setups[setupCount++] = columns[i];
+        setups = ColumnSet.with(setups, column);
       }
     }
 
-    // fit setups into array and return
-    return crunch(setups, setupCount);
-  }
-
-  protected static void debug(final String message) {
-    if (debug) {
-      System.out.println(message);
-    }
+    return setups;
   }
 
   /**
-   * Returns a new array of length <code>elements</code>, containing elements
-   * 0...n-1 of <code>array</code>.
+   * Records a search-trace event for this AI, if <code>debug</code> is set.
+   * The event is structured rather than a message, so a call costs nothing
+   * but the check when tracing is off, and formatting happens on the trace
+   * sink's own thread when it is on.
+   * @param column The column the event concerns, or -1 if none.
    */
-  private static int[] crunch(final int[] array, final int elements) {
-    int[] newArray = new int[elements];
-    System.arraycopy(array, 0, newArray, 0, elements);
-    return newArray;
+  protected final void trace(final Event event, final Colour colour, final int column) {
+    if (debug) {
+      SearchTrace.standardOut().record(aiColour, event, colour, column);
+    }
   }
 
   public static void main(String[] args) {
@@ -416,8 +811,9 @@ public abstract class AbstractAI {
     System.out.println("Testing pickColumn()");
     ConnectFourGrid grid = new ConnectFourGrid();
     System.out.println("Grid has "+grid.getColumns()+" columns");
+    AbstractAI ai = new NoAI(grid, Colour.White);
     for (int i = 0; i < 100; i++) {
-      System.out.print(pickColumn(grid)+" ");
+      System.out.print(ai.pickColumn(grid)+" ");
     }
   }
 
@@ -0,0 +1,77 @@
+package id.thrawnca.connect4;
+
+/**
+ * The value of every non-full column of a position, for the colour to
+ * move, as found by a single search; see <code>SearchAI.analyse</code> and
+ * <code>EndgameSolver.analyse</code>.
+ *
+ *<p>Scores are on the scale of the search that made them: positive scores
+ * are better for the colour to move, and wins and losses are reported as
+ * outcomes once proven. Only scores from the same analysis should be
+ * compared.
+ *
+ * @author Carl Antuar
+ */
+public final class Analysis {
+
+  /** The <code>ColumnSet</code> of the columns analysed. */
+  private final int columns;
+
+  /** The score of each column, indexed by column; 0 for full columns. */
+  private final int[] scores;
+
+  /** The proven outcome of each column, or null where it is not known. */
+  private final Outcome[] outcomes;
+
+  /** The number of moves ahead searched. */
+  private final int depth;
+
+  Analysis(final int columns, final int[] scores, final Outcome[] outcomes, final int depth) {
+    this.columns = columns;
+    this.scores = scores;
+    this.outcomes = outcomes;
+    this.depth = depth;
+  }
+
+  /** @return The <code>ColumnSet</code> of the columns analysed: every non-full column. */
+  public int getColumns() { return columns; }
+
+  /** @return The number of moves ahead searched, including the column's own. */
+  public int getDepth() { return depth; }
+
+  /** @return The score of playing in <code>column</code>. */
+  public int getScore(final int column) {
+    check(column);
+    return scores[column];
+  }
+
+  /**
+   * @return The outcome of playing in <code>column</code> with perfect
+   * play, or null if the search did not prove it.
+   */
+  public Outcome getOutcome(final int column) {
+    check(column);
+    return outcomes[column];
+  }
+
+  /** @return The <code>ColumnSet</code> of the columns with the best score. */
+  public int getBestColumns() {
+    int bestScore = Integer.MIN_VALUE;
+    int bestColumns = ColumnSet.EMPTY;
+    for (int column = ColumnSet.first(columns); column != -1; column = ColumnSet.next(columns, column)) {
+      if (scores[column] > bestScore) {
+        bestScore = scores[column];
+        bestColumns = ColumnSet.with(ColumnSet.EMPTY, column);
+      } else if (scores[column] == bestScore) {
+        bestColumns = ColumnSet.with(bestColumns, column);
+      }
+    }
+    return bestColumns;
+  }
+
+  private void check(final int column) {
+    if (column < 0 || column >= scores.length || !ColumnSet.contains(columns, column)) {
+      throw new IllegalArgumentException("Column was not analysed: " + column);
+    }
+  }
+}
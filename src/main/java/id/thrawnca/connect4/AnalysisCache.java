@@ -0,0 +1,186 @@
+package id.thrawnca.connect4;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * A fixed-size cache of threat-analysis results, keyed on position hash and
+ * on the kind of analysis.
+ *
+ *<p>A key selects a bucket of <code>WAYS</code> entries. When a bucket is
+ * full, an entry is evicted by the clock algorithm: each entry has a bit set
+ * whenever it is used, and the bucket's clock hand sweeps past entries whose
+ * bit is set, clearing it, until it finds one unused since its last sweep.
+ * Recently used results therefore survive, without the bookkeeping of a true
+ * LRU list.
+ *
+ *<p>The methods are synchronized, so a cache may be shared by analyses on
+ * several threads, eg those of <code>MaxAI</code> in parallel mode.
+ *
+ * @author Carl Antuar
+ */
+public final class AnalysisCache {
+
+  /** Kind of analysis: columns giving an n-way. */
+  public static final int NWAYS = 0;
+
+  /** Kind of analysis: columns giving an n-way that cannot be blocked. */
+  public static final int UNBLOCKABLE_NWAYS = 1;
+
+  /** Kind of analysis: columns giving a consequential. */
+  public static final int CONSEQUENTIALS = 2;
+
+  /** Kind of analysis: columns giving a consequential that cannot be blocked. */
+  public static final int UNBLOCKABLE_CONSEQUENTIALS = 3;
+
+  /** Returned by <code>get</code> when there is no entry for a key. */
+  public static final long MISS = -1;
+
+  /** Entries per bucket. */
+  private static final int WAYS = 4;
+
+  /** Bytes used per entry: the key, the result and the flags. */
+  private static final int BYTES_PER_ENTRY = Long.BYTES + Integer.BYTES + 2;
+
+  /**
+   * Hash key components distinguishing the kind of analysis and the colour
+   * analysed, indexed by <code>kind * 2 + colour.ordinal()</code>.
+   */
+  private static final long[] TAG_KEYS = new long[4 * 2];
+
+  /**
+   * Multiplied by the grid size to give a key component distinguishing
+   * grids of different sizes, as in <code>TranspositionTable</code>.
+   */
+  private static final long GRID_SIZE_KEY = 0x9e3779b97f4a7c15L;
+
+  static {
+    SplittableRandom random = new SplittableRandom(0x416e616c79736973L);
+    for (int i = 0; i < TAG_KEYS.length; i++) {
+      TAG_KEYS[i] = random.nextLong();
+    }
+  }
+
+  private final long[] keys;
+
+  private final int[] results;
+
+  private final boolean[] used;
+
+  /** Set when an entry is used, cleared as the clock hand passes it. */
+  private final boolean[] referenced;
+
+  /** The next entry each bucket's clock hand will examine, from 0. */
+  private final byte[] hands;
+
+  /** Mask selecting a bucket index from a key. */
+  private final int bucketMask;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * Constructs a new cache occupying about <code>megabytes</code> MB. The
+   * number of buckets is rounded down to a power of two.
+   */
+  public AnalysisCache(int megabytes) {
+    if (megabytes < 1 || megabytes > 1024) {
+      throw new IllegalArgumentException("Unsupported cache size: " + megabytes + "MB");
+    }
+    int buckets = Integer.highestOneBit((megabytes << 20) / (WAYS * BYTES_PER_ENTRY));
+    this.keys = new long[buckets * WAYS];
+    this.results = new int[buckets * WAYS];
+    this.used = new boolean[buckets * WAYS];
+    this.referenced = new boolean[buckets * WAYS];
+    this.hands = new byte[buckets];
+    this.bucketMask = buckets - 1;
+  }
+
+  /**
+   * @return The key under which to store the result of analysis
+   * <code>kind</code> of <code>grid</code> for <code>colour</code>.
+   */
+  public static long key(
+      final ConnectFourGrid grid,
+      final int kind,
+      final Colour colour) {
+    return grid.hashKey() ^ (grid.getRows() * 64L + grid.getColumns()) * GRID_SIZE_KEY
+        ^ TAG_KEYS[kind * 2 + colour.ordinal()];
+  }
+
+  /**
+   * @return The <code>ColumnSet</code> stored under <code>key</code>, as a
+   * non-negative <code>long</code>, or <code>MISS</code> if there is none.
+   */
+  public synchronized long get(final long key) {
+    int bucket = bucketIndex(key);
+    for (int i = bucket; i < bucket + WAYS; i++) {
+      if (used[i] && keys[i] == key) {
+        referenced[i] = true;
+        hits++;
+        return results[i] & 0xffffffffL;
+      }
+    }
+    misses++;
+    return MISS;
+  }
+
+  /** Records the <code>ColumnSet</code> found by an analysis. */
+  public synchronized void put(final long key, final int result) {
+    int bucket = bucketIndex(key);
+    int slot = -1;
+    for (int i = bucket; i < bucket + WAYS; i++) {
+      if (!used[i] || keys[i] == key) {
+        slot = i;
+        break;
+      }
+    }
+
+    if (slot == -1) {
+      // sweep the clock hand round to an entry not used since last time
+      int hand = hands[bucket / WAYS];
+      while (referenced[bucket + hand]) {
+        referenced[bucket + hand] = false;
+        hand = (hand + 1) % WAYS;
+      }
+      slot = bucket + hand;
+      hands[bucket / WAYS] = (byte) ((hand + 1) % WAYS);
+    }
+
+    keys[slot] = key;
+    results[slot] = result;
+    used[slot] = true;
+    referenced[slot] = false;
+  }
+
+  /** Removes all entries, and resets the counters. */
+  public synchronized void clear() {
+    Arrays.fill(used, false);
+    Arrays.fill(referenced, false);
+    Arrays.fill(hands, (byte) 0);
+    hits = 0;
+    misses = 0;
+  }
+
+  /** @return The number of entries the cache can hold. */
+  public int getCapacity() {
+    return keys.length;
+  }
+
+  /** @return The number of lookups that found an entry. */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /** @return The number of lookups that found no entry. */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private int bucketIndex(final long key) {
+    return ((int) (key ^ (key >>> 32)) & bucketMask) * WAYS;
+  }
+}
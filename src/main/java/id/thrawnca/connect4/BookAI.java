@@ -0,0 +1,115 @@
+package id.thrawnca.connect4;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Plays the opening from an <code>OpeningBook</code>, and hands over to
+ * another AI once the game leaves the book.
+ * @author Carl Antuar
+ */
+public final class BookAI extends AbstractAI {
+
+  private final AbstractAI delegate;
+
+  private final OpeningBook book;
+
+  /**
+   * Constructs a new AI playing from <code>book</code> for as long as it
+   * covers the position, and otherwise as <code>delegate</code> would, on
+   * the same grid and for the same colour.
+   */
+  public BookAI(final AbstractAI delegate, final OpeningBook book) {
+    super(delegate.grid, delegate.aiColour);
+    this.delegate = delegate;
+    this.book = book;
+  }
+
+  /** @return The AI that chooses columns outside the book. */
+  public AbstractAI getDelegate() { return delegate; }
+
+  /** Also gives the delegate a source split from <code>random</code>. */
+  @Override
+  public void setRandom(final SplittableRandom random) {
+    super.setRandom(random);
+    delegate.setRandom(random.split());
+  }
+
+  /**
+   * Chooses a random one of the book's best columns, or if the position is
+   * not in the book, the delegate's choice.
+   */
+  public int chooseColumn() {
+    int columns = book.lookup(grid, aiColour);
+    if (columns != ColumnSet.EMPTY) return pick(columns);
+    return delegate.chooseColumn();
+  }
+
+  /** As <code>chooseColumn()</code>, giving the delegate <code>budget</code>. */
+  @Override
+  public int chooseColumn(final Duration budget) {
+    int columns = book.lookup(grid, aiColour);
+    if (columns != ColumnSet.EMPTY) return pick(columns);
+    return delegate.chooseColumn(budget);
+  }
+
+  /**
+   * Stops the delegate pondering, then completes at once with a book column,
+   * or has the delegate choose in the background, so that its search can be
+   * followed and cancelled.
+   */
+  @Override
+  public CompletableFuture<Integer> chooseColumnAsync(
+      final Duration budget,
+      final ProgressListener listener) {
+    stopPondering();
+    int columns = book.lookup(grid, aiColour);
+    if (columns != ColumnSet.EMPTY) return CompletableFuture.completedFuture(pick(columns));
+    return delegate.chooseColumnAsync(budget, listener);
+  }
+
+  /** Also gives the delegate the table, since it chooses columns outside the book. */
+  @Override
+  public void setTranspositionTable(final TranspositionTable transpositionTable) {
+    super.setTranspositionTable(transpositionTable);
+    delegate.setTranspositionTable(transpositionTable);
+  }
+
+  /** Also gives the delegate the cache, since it chooses columns outside the book. */
+  @Override
+  public void setAnalysisCache(final AnalysisCache analysisCache) {
+    super.setAnalysisCache(analysisCache);
+    delegate.setAnalysisCache(analysisCache);
+  }
+
+  /** Also limits the delegate, since it chooses columns outside the book. */
+  @Override
+  public void setMaxChainDepth(final int maxChainDepth) {
+    super.setMaxChainDepth(maxChainDepth);
+    delegate.setMaxChainDepth(maxChainDepth);
+  }
+
+  /** Also gives the delegate the solver, since it chooses columns outside the book. */
+  @Override
+  public void setEndgameSolver(final EndgameSolver endgameSolver, final int endgameCells) {
+    super.setEndgameSolver(endgameSolver, endgameCells);
+    delegate.setEndgameSolver(endgameSolver, endgameCells);
+  }
+
+  /** Has the delegate ponder, since it will choose columns outside the book. */
+  @Override
+  public void startPondering() {
+    delegate.startPondering();
+  }
+
+  @Override
+  public void stopPondering() {
+    delegate.stopPondering();
+  }
+
+  @Override
+  public boolean isPondering() {
+    return delegate.isPondering();
+  }
+}
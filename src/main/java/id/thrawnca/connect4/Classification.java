@@ -0,0 +1,66 @@
+package id.thrawnca.connect4;
+
+/**
+ * The moves available to one colour in one position, as classified by
+ * <code>AbstractAI.classify</code>: its threats, and the columns that would
+ * give it an n-way or a consequential.
+ *
+ *<p>N-ways and consequentials are found for both kinds of call made by the
+ * analysis helpers at once. Top-level results, used to choose the AI's
+ * immediate move, leave out opposing wins that could not be blocked by
+ * playing in their column; other results include them.
+ *
+ * @author Carl Antuar
+ */
+final class Classification {
+
+  private final int threats;
+
+  private final int nWays;
+
+  private final int consequentials;
+
+  /** Columns in which blocking would still leave an opposing threat. */
+  private final int unblockable;
+
+  /** Whether the colour classified is the AI's opponent. */
+  private final boolean opponent;
+
+  Classification(
+      final int threats,
+      final int nWays,
+      final int consequentials,
+      final int unblockable,
+      final boolean opponent) {
+    this.threats = threats;
+    this.nWays = nWays;
+    this.consequentials = consequentials;
+    this.unblockable = unblockable;
+    this.opponent = opponent;
+  }
+
+  /** @return The <code>ColumnSet</code> of columns giving an immediate win. */
+  public int getThreats() {
+    return threats;
+  }
+
+  /**
+   * @param topLevel Whether the result is for choosing the AI's immediate
+   * move, and so should leave out opposing n-ways that cannot be blocked.
+   * @return The <code>ColumnSet</code> of columns giving an n-way.
+   */
+  public int getNWays(final boolean topLevel) {
+    return (topLevel && opponent)? nWays & ~unblockable : nWays;
+  }
+
+  /**
+   * @param topLevel Whether the result is for choosing the AI's immediate
+   * move, and so should leave out opposing consequentials that cannot be
+   * blocked.
+   * @return The <code>ColumnSet</code> of columns giving a consequential, or
+   * the empty set if consequentials were not looked for.
+   */
+  public int getConsequentials(final boolean topLevel) {
+    return (topLevel && opponent)? consequentials & ~unblockable : consequentials;
+  }
+}
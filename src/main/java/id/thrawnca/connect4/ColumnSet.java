@@ -0,0 +1,97 @@
+package id.thrawnca.connect4;
+
+import java.util.SplittableRandom;
+
+/**
+ * Operations on sets of column indices, represented as <code>int</code>
+ * bitmasks in which bit <i>n</i> is set if column <i>n</i> is a member.
+ *
+ *<p>Since a <code>ConnectFourGrid</code> never has more than 32 columns,
+ * every set of its columns fits in an <code>int</code>, and the sets can be
+ * built, tested and passed around without allocating anything.
+ *
+ *<p>To visit each member in ascending order:
+ *<pre>
+ *  for (int column = ColumnSet.first(set); column != -1; column = ColumnSet.next(set, column)) {
+ *    ...
+ *  }
+ *</pre>
+ *
+ * @author Carl Antuar
+ */
+final class ColumnSet {
+
+  /** The set containing no columns. */
+  public static final int EMPTY = 0;
+
+  private ColumnSet() {}
+
+  /** @return <code>set</code> with <code>column</code> added. */
+  public static int with(final int set, final int column) {
+    return set | (1 << column);
+  }
+
+  public static boolean isEmpty(final int set) {
+    return set == EMPTY;
+  }
+
+  public static boolean contains(final int set, final int column) {
+    return (set & (1 << column)) != 0;
+  }
+
+  /** @return The number of columns in <code>set</code>. */
+  public static int size(final int set) {
+    return Integer.bitCount(set);
+  }
+
+  /** @return The lowest column in <code>set</code>, or -1 if it is empty. */
+  public static int first(final int set) {
+    return (set == EMPTY)? -1 : Integer.numberOfTrailingZeros(set);
+  }
+
+  /**
+   * @return The lowest column in <code>set</code> that is higher than
+   * <code>column</code>, or -1 if there is none.
+   */
+  public static int next(final int set, final int column) {
+    // clear the given column and everything below it
+    return first(set & (-2 << column));
+  }
+
+  /**
+   * @return The <code>n</code>th lowest column in <code>set</code>, counting
+   * from 0.
+   * @throws IllegalArgumentException If <code>set</code> has fewer than
+   * <code>n + 1</code> members.
+   */
+  public static int get(final int set, final int n) {
+    if (n < 0 || n >= size(set)) {
+      throw new IllegalArgumentException("No member " + n + " in column set of size " + size(set));
+    }
+    int remaining = set;
+    for (int i = 0; i < n; i++) {
+      remaining &= remaining - 1;  // drop the lowest member
+    }
+    return Integer.numberOfTrailingZeros(remaining);
+  }
+
+  /**
+   * @return A member of <code>set</code>, chosen uniformly at random by
+   * <code>random</code>.
+   * @throws IllegalArgumentException If <code>set</code> is empty.
+   */
+  public static int pick(final int set, final SplittableRandom random) {
+    if (isEmpty(set)) throw new IllegalArgumentException("No member in empty column set");
+    return get(set, random.nextInt(size(set)));
+  }
+
+  /** @return The members of <code>set</code>, eg "[1, 4]". */
+  public static String toString(final int set) {
+    StringBuilder builder = new StringBuilder("[");
+    for (int column = first(set); column != -1; column = next(set, column)) {
+      if (builder.length() > 1) builder.append(", ");
+      builder.append(column);
+    }
+    return builder.append(']').toString();
+  }
+}
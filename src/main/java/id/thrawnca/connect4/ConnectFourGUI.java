@@ -4,9 +4,13 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import javax.swing.*;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 //import org.antuar.carl.net.*;
 
@@ -44,6 +48,12 @@ public class ConnectFourGUI extends JFrame {
   /** The AI for the two players (AI of human players is null). */
   private Map<Colour, AbstractAI> playerAI = new HashMap<Colour, AbstractAI>();
 
+  /** The column being chosen by the current AI player, or null. */
+  private CompletableFuture<Integer> pendingChoice;
+
+  /** The opening book for the stronger AIs, or null to play openings unaided. */
+  private static OpeningBook book;
+
   /** The win/loss history of this session. */
   private Map<Colour, Integer> history = new HashMap<Colour, Integer>();
 
@@ -93,6 +103,8 @@ public class ConnectFourGUI extends JFrame {
 
   public ConnectFourGUI() {
     super("Connect Four");
+    // closing the window stops any AI still thinking
+    setDefaultCloseOperation(DISPOSE_ON_CLOSE);
 
     // create game history
     history.put(Colour.Black, 0);
@@ -279,6 +291,8 @@ public class ConnectFourGUI extends JFrame {
     dlgBlackChoice.setVisible(true);
     players.put(Colour.White, dlgWhiteChoice.getPlayerType());
     players.put(Colour.Black, dlgBlackChoice.getPlayerType());
+    cancelChoice();
+    stopPondering();
     for (Colour colour : players.keySet()) {
       switch (players.get(colour)) {
         // human: AI is null
@@ -294,7 +308,8 @@ public class ConnectFourGUI extends JFrame {
         case ComputerBrainless: playerAI.put(colour, new NoAI(grid, colour)); break;
         case ComputerEasy: playerAI.put(colour, new EasyAI(grid, colour)); break;
         case ComputerMedium: playerAI.put(colour, new MediumAI(grid, colour)); break;
-        case ComputerHard: playerAI.put(colour, new MaxAI(grid, colour)); break;
+        case ComputerHard: playerAI.put(colour, withBook(new MaxAI(grid, colour))); break;
+        case ComputerExpert: playerAI.put(colour, withBook(new SearchAI(grid, colour))); break;
       }
     }
 
@@ -331,7 +346,12 @@ public class ConnectFourGUI extends JFrame {
 
     statusMessage(colourString(currentPlayer) + "'s turn");
     // determine whether next player is human or AI
-    if (players.get(currentPlayer) == Player.Human) toggleControls(true);
+    if (players.get(currentPlayer) == Player.Human) {
+      // an AI opponent can think while the human does
+      AbstractAI opponentAI = playerAI.get(currentPlayer.opposite());
+      if (opponentAI != null) opponentAI.startPondering();
+      toggleControls(true);
+    }
     else computerTurn();
   }
 
@@ -341,29 +361,19 @@ public class ConnectFourGUI extends JFrame {
    * @return Whether the piece was added successfully.
    */
   private boolean addPiece(int column) {
-    // remember the row to which a piece will be added
-    int row = grid.getNextRow(column);
-
     // attempt to add a piece
     if (grid.addPiece(currentPlayer, column)) {
       //~ transmitMove(currentPlayer, column);
       updateView();
 
       // check for Connect Four
-      if (grid.connectsFour(row, column)) {
+      if (grid.lastMoveConnectsFour()) {
         win(currentPlayer);
-      } else {
-        // test for grid being full
-        for (int i = 0; i < grid.getColumns(); i++) {
-          // any empty column will do
-          if (grid.getNextRow(i) != -1) {
-            flipTurn();
-            return true;
-          }
-        }
-
-        // no empty columns; grid is full so game is drawn
+      } else if (grid.isFull()) {
+        // no empty columns; game is drawn
         win(null);
+      } else {
+        flipTurn();
       }
 
       // piece has been added
@@ -430,10 +440,20 @@ public class ConnectFourGUI extends JFrame {
   private void computerTurn() {
     // disable user controls until computer is finished
     toggleControls(false);
-
-    int column;
-    do {
-      column = playerAI.get(currentPlayer).chooseColumn();
+    final AbstractAI ai = playerAI.get(currentPlayer);
+
+    // choose in the background, so that the game can be abandoned meanwhile
+    pendingChoice = ai.chooseColumnAsync(new ProgressListener() {
+        public void progress(final int depth, final long nodes, final int column) {
+          SwingUtilities.invokeLater(new Runnable() {
+              public void run() {
+                if (isTurnOf(ai)) statusMessage("AI thinking: depth " + depth + ", column " + (column + 1));
+              }
+            }
+          );
+        }
+      }
+    );
 /*    ConnectFourGrid alternateGrid;  // a cloned grid for testing moves
 
     // choose a column
@@ -499,12 +519,39 @@ public class ConnectFourGUI extends JFrame {
         column = pickColumn();
       } while (goodPlayExists && badColumns[column] == true);
     }*/
+    pendingChoice.whenComplete(new BiConsumer<Integer, Throwable>() {
+        public void accept(final Integer column, final Throwable error) {
+          if (error != null) {
+            if (!(error instanceof CancellationException)) error.printStackTrace();
+            return;
+          }
+          SwingUtilities.invokeLater(new Runnable() {
+              public void run() {
+                if (!isTurnOf(ai)) return;
+                pendingChoice = null;
+                // add a piece to the chosen column, or choose again
+                if (!addPiece(column)) computerTurn();
+                // status message if the game has not finished
+                else if (active) statusMessage("AI played in column "+(column+1));
+              }
+            }
+          );
+        }
+      }
+    );
+  }
 
-    // add a piece to the chosen column
-    } while (!addPiece(column));
+  /** @return Whether the game is still waiting for <code>ai</code> to move. */
+  private boolean isTurnOf(final AbstractAI ai) {
+    return active && playerAI.get(currentPlayer) == ai;
+  }
 
-    // status message if the game has not finished
-    if (active) statusMessage("AI played in column "+(column+1));
+  /** Abandons any column being chosen by an AI player. */
+  private void cancelChoice() {
+    if (pendingChoice != null) {
+      pendingChoice.cancel(false);
+      pendingChoice = null;
+    }
   }
 
   /**/
@@ -514,6 +561,7 @@ public class ConnectFourGUI extends JFrame {
     // disable controls
     toggleControls(false);
     active = false;
+    stopPondering();
     history.put(colour, history.get(colour) + 1);
     dlgHistory.updateHistory();
 
@@ -546,7 +594,8 @@ public class ConnectFourGUI extends JFrame {
   }
 
   /**
-   * Constructs and displays 1 * ConnectFourGUI.
+   * Constructs and displays 1 * ConnectFourGUI. The system property
+   * <code>connect4.book</code> names an opening book for the stronger AIs.
    * @param args The command-line arguments are not used.
    */
   public static void main(String[] args) throws IOException {
@@ -557,13 +606,35 @@ public class ConnectFourGUI extends JFrame {
         break;
       }
     }
+    String bookFile = System.getProperty("connect4.book");
+    if (bookFile != null) book = OpeningBook.open(Paths.get(bookFile));
     ConnectFourGUI tpo = new ConnectFourGUI();
     tpo.pack();
     tpo.setVisible(true);
   }
 
+  /** Stops the AI players thinking, then closes the window. */
+  @Override
+  public void dispose() {
+    cancelChoice();
+    stopPondering();
+    super.dispose();
+  }
+
+  /** Stops any AI thinking on its opponent's time. */
+  private void stopPondering() {
+    for (AbstractAI ai : playerAI.values()) {
+      if (ai != null) ai.stopPondering();
+    }
+  }
+
+  /** @return <code>ai</code>, playing from the opening book if there is one. */
+  private static AbstractAI withBook(final AbstractAI ai) {
+    return (book == null)? ai : new BookAI(ai, book);
+  }
+
   /** The potential types of player that may be involved. */
-  private enum Player { Human, Network, ComputerBrainless, ComputerEasy, ComputerMedium, ComputerHard; }
+  private enum Player { Human, Network, ComputerBrainless, ComputerEasy, ComputerMedium, ComputerHard, ComputerExpert; }
 
   /* Member classes */
 
@@ -755,6 +826,9 @@ public class ConnectFourGUI extends JFrame {
       playerTypes[Player.ComputerHard.ordinal()] = new JRadioButton("AI - Wizard", false);
       playerTypes[Player.ComputerHard.ordinal()].addKeyListener(new RadioListener());
 
+      playerTypes[Player.ComputerExpert.ordinal()] = new JRadioButton("AI - Sage", false);
+      playerTypes[Player.ComputerExpert.ordinal()].addKeyListener(new RadioListener());
+
       playerTypes[Player.Network.ordinal()] = new JRadioButton("Remote player", false);
       playerTypes[Player.Network.ordinal()].addKeyListener(new RadioListener());
 
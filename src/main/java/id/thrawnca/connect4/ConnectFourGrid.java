@@ -1,13 +1,21 @@
 package id.thrawnca.connect4;
 
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The grid of a Connect Four game, in which two players take turns dropping
  * pieces into the columns until one player achieves a straight line of four
  * pieces in their own colour.
  *
- *<p>The standard Connect Four grid has 6 rows and 7 columns.
+ *<p>The standard Connect Four grid has 6 rows and 7 columns. Grids are
+ * stored as 64-bit bitboards with a spare cell above each column, so only
+ * grids with <code>(rows + 1) * columns</code> of at most 64 are supported:
+ * 8 rows by 7 columns is the largest with 7 columns, and 9x7, 10x7 and 8x8,
+ * for example, are not.
  *
  * @author Carl Antuar
  */
@@ -37,21 +45,87 @@ class ConnectFourGrid implements Cloneable, java.io.Serializable {
     public Colour opposite() { return (this == Black)? White : Black; }
   }
 
-  private static final long serialVersionUID = -5564021615011740774L;
+  private static final long serialVersionUID = 2861386385012962385L;
 
-  private Colour[][] grid;
+  /**
+   * Zobrist keys for a piece of each colour on each bitboard bit. The seed is
+   * fixed so that hash keys are stable between runs.
+   */
+  private static final long[][] ZOBRIST_KEYS = new long[Colour.values().length][Long.SIZE];
+
+  static {
+    SplittableRandom random = new SplittableRandom(0x436f6e6e65637434L);
+    for (long[] keys : ZOBRIST_KEYS) {
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = random.nextLong();
+      }
+    }
+  }
+
+  /** Win-line tables, computed once per grid size. */
+  private static final Map<Integer, WinLines> WIN_LINES = new ConcurrentHashMap<Integer, WinLines>();
+
+  private final int rows;
+
+  private final int columns;
+
+  /**
+   * Number of bits given to each column of the bitboards: one per row, plus
+   * an always-empty sentinel bit on top so that lines cannot wrap from the
+   * top of one column into the bottom of the next.
+   */
+  private final int bitsPerColumn;
+
+  /**
+   * Bitboards of the pieces of each colour. The cell at <code>(row,
+   * column)</code> is bit <code>column * bitsPerColumn + row</code>.
+   */
+  private long blackPieces, whitePieces;
+
+  /** The number of pieces in each column. */
+  private final int[] heights;
+
+  /** The <code>ColumnSet</code> of the columns that are not full. */
+  private int openColumns;
+
+  /** The columns played so far, in order, so that moves can be undone. */
+  private final int[] moves;
+
+  private int moveCount;
+
+  /** Zobrist hash of the pieces on the grid, maintained incrementally. */
+  private long hashKey;
+
+  /** The win lines for this size of grid; looked up again after deserialisation. */
+  private transient WinLines winLines;
 
   public ConnectFourGrid() {
     this(6, 7);
   }
 
+  /**
+   * Constructs an empty grid of <code>rows</code> by <code>columns</code>.
+   * Not every size can be stored: <code>(rows + 1) * columns</code> must be
+   * at most 64, which allows up to 8 rows of 7 columns or 7 rows of 8
+   * columns, but rules out larger grids such as 9x7, 10x7 or 8x8.
+   * @throws IllegalArgumentException If the grid is empty, or too large to
+   * fit in a 64-bit bitboard, ie if <code>(rows + 1) * columns &gt; 64</code>.
+   */
   public ConnectFourGrid(int rows, int columns) {
-    grid = new Colour[rows][columns];
+    if (rows < 1 || columns < 1 || (rows + 1) * columns > Long.SIZE) {
+      throw new IllegalArgumentException("Unsupported grid size: " + rows + "x" + columns);
+    }
+    this.rows = rows;
+    this.columns = columns;
+    this.bitsPerColumn = rows + 1;
+    this.heights = new int[columns];
+    this.moves = new int[rows * columns];
+    this.openColumns = (int) ((1L << columns) - 1);
   }
 
-  public int getRows() { return grid.length; }
+  public int getRows() { return rows; }
 
-  public int getColumns() { return grid[0].length; }
+  public int getColumns() { return columns; }
 
   /**
    * @param column The column for which to specify the next empty row, indexed
@@ -60,17 +134,24 @@ class ConnectFourGrid implements Cloneable, java.io.Serializable {
    * piece would be placed), or -1 if the column is full.
    */
   public int getNextRow(int column) {
-    if (column < 0 || column >= getColumns()) {
-      throw new IllegalArgumentException("Column outside grid: " + column);
-    }
-    // search upward through rows
-    for (int i = 0; i < getRows(); i++) {
-      // return index of first empty row
-      if (colourAt(i, column) == null) return i;
+    if (column < 0 || column >= columns) {
+      throw new IllegalArgumentException("Column outside grid: " + column);
     }
+    return (heights[column] < rows)? heights[column] : -1;
+  }
 
-    // no empty rows; fail
-    return -1;
+  /**
+   * @return The <code>ColumnSet</code> of the columns that are not full,
+   * without examining each column.
+   */
+  public int getOpenColumns() { return openColumns; }
+
+  /** @return The number of pieces on the grid. */
+  public int getMoveCount() { return moveCount; }
+
+  /** @return Whether every column of the grid is full. */
+  public boolean isFull() {
+    return moveCount == moves.length;
   }
 
   /**
@@ -79,7 +160,10 @@ class ConnectFourGrid implements Cloneable, java.io.Serializable {
    * @return The colour of the piece at <code>(row, column)</code>.
    */
   public Colour colourAt(int row, int column) {
-    return grid[row][column];
+    long bit = bit(row, column);
+    if ((blackPieces & bit) != 0) return Colour.Black;
+    if ((whitePieces & bit) != 0) return Colour.White;
+    return null;
   }
 
   /**
@@ -87,96 +171,281 @@ class ConnectFourGrid implements Cloneable, java.io.Serializable {
    * Four.
    */
   public boolean connectsFour(int row, int column) {
-    Colour colour = colourAt(row, column);
-
-    // check for position being empty
-    if (colour == null) return false;
-
-    // check all directions except 'no direction' (x and y components 0)
-    for (int i = -1; i <= 1; i++) {
-      for (int j = -1; j <= 1; j++) {
-        // move on if 'no direction'
-        if (i == 0 && j == 0) continue;
+    long bit = bit(row, column);
+    long pieces;
+    if ((blackPieces & bit) != 0) pieces = blackPieces;
+    else if ((whitePieces & bit) != 0) pieces = whitePieces;
+    else return false;  // position is empty
+
+    // check vertical, horizontal and both diagonal directions at once
+    long fours = fours(pieces, 1)
+        | fours(pieces, bitsPerColumn)
+        | fours(pieces, bitsPerColumn - 1)
+        | fours(pieces, bitsPerColumn + 1);
+    return (fours & bit) != 0;
+  }
 
-        // check this point and the one behind it
-        if (checkDirection(row, column, i, j) || checkDirection(row - j, column - i, i, j)) return true;
-      }
-    }
+  /**
+   * Private helper for <code>connectsFour</code>. Finds every piece in
+   * <code>pieces</code> that is part of a line of four, where consecutive
+   * pieces of the line are <code>shift</code> bits apart.
+   */
+  private static long fours(long pieces, int shift) {
+    // bits marking the start of each line of four
+    long pairs = pieces & (pieces >>> shift);
+    long starts = pairs & (pairs >>> (2 * shift));
 
-    // no Connect Four found
-    return false;
+    // spread each start over the rest of its line
+    return starts | (starts << shift) | (starts << (2 * shift)) | (starts << (3 * shift));
   }
 
   /**
-   * Private helper for <code>connectsFour</code>. Checks for Connect Fours
-   * from the point <code>(row, column)</code>, outward in the direction
-   * defined by <code>xDir</code> and <code>yDir</code>. A positive
-   * <code>xDir</code> indicates rightward; a positive <code>yDir</code>
-   * indicates upward; and of course vice versa for negative values.
-   *
-   *<p>Eg if xDir = -1 and yDir = 1, the indicated direction is diagonally up
-   * and left.
+   * Checks whether the piece most recently added completed a Connect Four.
+   * Only the lines through that piece are examined, so this is much cheaper
+   * than <code>connectsFour</code>.
+   * @return Whether the last piece added is part of a Connect Four, or false
+   * if the grid is empty.
    */
-  private boolean checkDirection(int row, int column, int xDir, int yDir) {
-    // these variables are not necessary, but do improve readability
-    int bottom = 0, top = getRows() - 1, left = 0, right = getColumns() - 1;
-
-    // outside grid -> fail
-    if (row < bottom || row > top || column < left || column > right) return false;
+  public boolean lastMoveConnectsFour() {
+    if (moveCount == 0) return false;
 
-    // traverse three spaces comparing colours
-    int currRow = row, currCol = column;
-    for (int i = 1; i <= 3; i++) {
-      // move in the specified direction
-      switch (xDir) {
-        case -1: currCol--; break;
-        case 1: currCol++; break;
-      }
+    int column = moves[moveCount - 1];
+    int index = column * bitsPerColumn + heights[column] - 1;
+    long pieces = ((blackPieces & (1L << index)) != 0)? blackPieces : whitePieces;
+    return completesLine(pieces, index);
+  }
 
-      switch (yDir) {
-        case -1: currRow--; break;
-        case 1: currRow++; break;
-      }
+  /**
+   * Checks whether <code>colour</code> would make a Connect Four by playing
+   * in <code>column</code>, without adding a piece.
+   * @return Whether a play by <code>colour</code> in <code>column</code>
+   * would win, or false if the column is full.
+   */
+  public boolean wouldConnectFour(Colour colour, int column) {
+    int row = getNextRow(column);
+    if (row == -1) return false;
 
-      // outside grid -> fail
-      if (currRow < bottom || currRow > top || currCol < left || currCol > right) return false;
+    int index = column * bitsPerColumn + row;
+    long pieces = (colour == Colour.Black)? blackPieces : whitePieces;
+    return completesLine(pieces | (1L << index), index);
+  }
 
-      // compare colour at current position to colour at starting point
-      if (colourAt(currRow, currCol) != colourAt(row, column)) return false;
+  /**
+   * Private helper for the last-move win checks.
+   * @return Whether <code>pieces</code> fill any win line through bitboard
+   * bit <code>index</code>.
+   */
+  private boolean completesLine(long pieces, int index) {
+    for (long line : winLines().through[index]) {
+      if ((pieces & line) == line) return true;
     }
-
-    // traversed three positions without failing -> connect four
-    return true;
+    return false;
   }
 
+  /**
+   * Drops a piece of <code>colour</code> into <code>column</code>. The move
+   * can later be reversed with <code>undoMove</code>.
+   * @return Whether the piece was added, ie whether the column was non-full.
+   */
   public boolean addPiece(Colour colour, int column) {
+    if (colour == null) {
+      throw new IllegalArgumentException("No colour specified");
+    }
     int row = getNextRow(column);
 
     // column is full -> fail
     if (row == -1) return false;
 
     // otherwise add a piece
-    grid[row][column] = colour;
+    int index = column * bitsPerColumn + row;
+    long bit = 1L << index;
+    if (colour == Colour.Black) blackPieces |= bit;
+    else whitePieces |= bit;
+    hashKey ^= ZOBRIST_KEYS[colour.ordinal()][index];
+    if (++heights[column] == rows) openColumns &= ~(1 << column);
+    moves[moveCount++] = column;
     return true;
   }
 
-  public void zap() {
-    for (int i = 0; i < grid.length; i++) {
-      for (int j = 0; j < grid[i].length; j++) {
-        grid[i][j] = null;
-      }
+  /**
+   * Removes the piece most recently added by <code>addPiece</code>, so that
+   * hypothetical moves can be tested in place rather than on a clone.
+   * @return The column from which the piece was removed.
+   * @throws IllegalStateException If there are no pieces to remove.
+   */
+  public int undoMove() {
+    if (moveCount == 0) {
+      throw new IllegalStateException("No moves to undo");
     }
+    int column = moves[--moveCount];
+
+    // the highest occupied cell of the column is the piece to remove
+    int index = column * bitsPerColumn + --heights[column];
+    openColumns |= 1 << column;
+    long bit = 1L << index;
+    Colour colour = ((blackPieces & bit) != 0)? Colour.Black : Colour.White;
+    hashKey ^= ZOBRIST_KEYS[colour.ordinal()][index];
+    blackPieces &= ~bit;
+    whitePieces &= ~bit;
+    return column;
+  }
+
+  public void zap() {
+    blackPieces = 0;
+    whitePieces = 0;
+    Arrays.fill(heights, 0);
+    openColumns = (int) ((1L << columns) - 1);
+    moveCount = 0;
+    hashKey = 0;
   }
 
+  /**
+   * @return A 64-bit Zobrist hash of the pieces on the grid. Equal positions
+   * always have equal keys, regardless of the order in which the pieces were
+   * added; the key is updated in constant time by each move and undo.
+   */
+  public long hashKey() { return hashKey; }
+
   @Override
   public ConnectFourGrid clone() {
-    ConnectFourGrid clone = new ConnectFourGrid(getRows(), getColumns());
-    for (int i = 0; i < getRows(); i++) {
-      for (int j = 0; j < getColumns(); j++) {
-        clone.grid[i][j] = grid[i][j];
+    ConnectFourGrid clone = new ConnectFourGrid(rows, columns);
+    clone.blackPieces = blackPieces;
+    clone.whitePieces = whitePieces;
+    System.arraycopy(heights, 0, clone.heights, 0, columns);
+    clone.openColumns = openColumns;
+    System.arraycopy(moves, 0, clone.moves, 0, moveCount);
+    clone.moveCount = moveCount;
+    clone.hashKey = hashKey;
+    return clone;
+  }
+
+  /**
+   * @return Whether <code>obj</code> is a grid of the same size with the same
+   * pieces in the same places. The order of moves is not compared.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) return true;
+    if (!(obj instanceof ConnectFourGrid)) return false;
+
+    ConnectFourGrid other = (ConnectFourGrid) obj;
+    // compare hashes first, as they almost always differ for unequal grids
+    return hashKey == other.hashKey
+        && rows == other.rows
+        && columns == other.columns
+        && blackPieces == other.blackPieces
+        && whitePieces == other.whitePieces;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (hashKey ^ (hashKey >>> 32));
+  }
+
+  /**
+   * @return The bitboard of the pieces of <code>colour</code>, in which the
+   * cell at <code>(row, column)</code> is bit <code>column * (rows + 1) +
+   * row</code>.
+   */
+  long getPieces(Colour colour) {
+    return (colour == Colour.Black)? blackPieces : whitePieces;
+  }
+
+  /**
+   * @return The bitboard masks of every possible line of four on this grid.
+   * The array is shared, and must not be modified.
+   */
+  long[] getWinLines() {
+    return winLines().all;
+  }
+
+  private WinLines winLines() {
+    if (winLines == null) {
+      winLines = WinLines.forSize(rows, columns);
+    }
+    return winLines;
+  }
+
+  /**
+   * @return The bitboard bit representing position <code>(row,
+   * column)</code>.
+   */
+  private long bit(int row, int column) {
+    if (row < 0 || row >= rows || column < 0 || column >= columns) {
+      throw new IllegalArgumentException("Position outside grid: (" + row + ", " + column + ")");
+    }
+    return 1L << (column * bitsPerColumn + row);
+  }
+
+  /**
+   * The bitboard masks of every possible line of four on a grid of a given
+   * size, indexed by the cells they pass through.
+   */
+  private static final class WinLines {
+
+    /** The lines through each bitboard bit; empty for sentinel bits. */
+    private final long[][] through;
+
+    /** Every line on the grid, each listed once. */
+    private final long[] all;
+
+    private WinLines(int rows, int columns) {
+      int bitsPerColumn = rows + 1;
+      through = new long[Long.SIZE][];
+      long[] allLines = new long[4 * rows * columns];
+      int allCount = 0;
+
+      // horizontal, vertical, rising and falling directions as (row, column) steps
+      int[][] directions = { {0, 1}, {1, 0}, {1, 1}, {-1, 1} };
+
+      for (int row = 0; row < rows; row++) {
+        for (int column = 0; column < columns; column++) {
+          long[] lines = new long[16];  // at most 4 lines per direction
+          int lineCount = 0;
+
+          for (int[] direction : directions) {
+            // each line through this cell starts 0-3 steps behind it
+            for (int back = 0; back <= 3; back++) {
+              int startRow = row - back * direction[0];
+              int startColumn = column - back * direction[1];
+              int endRow = startRow + 3 * direction[0];
+              int endColumn = startColumn + 3 * direction[1];
+              if (Math.min(startRow, endRow) < 0 || Math.max(startRow, endRow) >= rows
+                  || startColumn < 0 || endColumn >= columns) continue;
+
+              long line = 0;
+              for (int i = 0; i <= 3; i++) {
+                line |= 1L << ((startColumn + i * direction[1]) * bitsPerColumn + startRow + i * direction[0]);
+              }
+              lines[lineCount++] = line;
+
+              // record each line once, against the cell where it starts
+              if (back == 0) allLines[allCount++] = line;
+            }
+          }
+
+          through[column * bitsPerColumn + row] = Arrays.copyOf(lines, lineCount);
+        }
+      }
+
+      all = Arrays.copyOf(allLines, allCount);
+
+      // sentinel and unused bits have no lines
+      for (int i = 0; i < through.length; i++) {
+        if (through[i] == null) through[i] = new long[0];
       }
     }
-    return clone;
+
+    static WinLines forSize(final int rows, final int columns) {
+      Integer key = rows * Long.SIZE + columns;
+      WinLines lines = WIN_LINES.get(key);
+      if (lines == null) {
+        lines = new WinLines(rows, columns);
+        WinLines existing = WIN_LINES.putIfAbsent(key, lines);
+        if (existing != null) lines = existing;
+      }
+      return lines;
+    }
   }
 
 }
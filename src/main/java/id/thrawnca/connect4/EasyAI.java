@@ -16,21 +16,25 @@ public final class EasyAI extends AbstractAI {
   }
 
   /**
-   * Chooses a non-full column. If an immediate win is available, that
-   * column is chosen; else if an immediate win for the opponent must
+   * Chooses a non-full column. If the endgame solver has solved the
+   * position, one of its best columns is chosen; else if an immediate win
+   * is available, that column is chosen; else if an immediate win for the opponent must
    * be blocked, that column is chosen; else the choice is random.
    * @return The index of the chosen column.
    */
   public int chooseColumn() {
-    int[] columns;  // contains indices of columns in which the AI should play
+    int columns;  // contains indices of columns in which the AI should play
+    final ConnectFourGrid testGrid = grid.clone();  // private grid for testing moves
 
-    if ((columns = getThreats(grid, aiColour)).length > 0 // immediate win exists
+    if ((columns = solveEndgame(testGrid)) != ColumnSet.EMPTY // endgame solved
+        ||
+        (columns = getThreats(testGrid, aiColour)) != ColumnSet.EMPTY // immediate win exists
         ||
         // immediate opponent win must be blocked
-        (columns = getThreats(grid, aiColour.opposite())).length > 0
+        (columns = getThreats(testGrid, aiColour.opposite())) != ColumnSet.EMPTY
         ) {
       // if n-way threat: choose one if its columns at random
-      return columns[(int) (Math.random() * columns.length)];
+      return pick(columns);
     } else return pickColumn(grid);
   }
 }
@@ -0,0 +1,209 @@
+package id.thrawnca.connect4;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * Solves positions exactly, by searching every line of play to the end of
+ * the game.
+ *
+ *<p>This is only practical once few cells remain, but then it is both
+ * faster and more reliable than heuristics: the outcome it reports is
+ * proven, and the columns it chooses achieve it.
+ *
+ *<p>Scores are from the point of view of the colour to move. A win scores
+ * the number of empty cells left after the winning piece is played, plus
+ * one, so sooner wins score more; a loss scores the negative of the
+ * opponent's win, and a draw scores 0. Choosing the best score therefore
+ * takes the quickest win, or failing that a draw, or failing that the
+ * slowest loss.
+ *
+ *<p>Results are cached in a <code>TranspositionTable</code>. Since scores
+ * are exact rather than estimates, the table must not be shared with a
+ * heuristic search.
+ *
+ * @author Carl Antuar
+ */
+public final class EndgameSolver {
+
+  /** The size in MB of the transposition table used if none is given. */
+  public static final int DEFAULT_TABLE_SIZE = 8;
+
+  private final TranspositionTable table;
+
+  /** The number of positions visited by the most recent solve. */
+  private long nodes;
+
+  public EndgameSolver() {
+    this(new TranspositionTable(DEFAULT_TABLE_SIZE));
+  }
+
+  /**
+   * Constructs a new solver caching its results in <code>table</code>,
+   * which should be used by no other search.
+   */
+  public EndgameSolver(final TranspositionTable table) {
+    this.table = table;
+  }
+
+  /**
+   * @return The outcome of <code>grid</code> with perfect play, for
+   * <code>toMove</code>. This is cheaper than <code>score</code>, since it
+   * need not find how soon the game ends.
+   */
+  public Outcome solve(final ConnectFourGrid grid, final Colour toMove) {
+    nodes = 0;
+    return Outcome.of(negamax(grid.clone(), toMove, SearchAI.centreFirst(grid.getColumns()), -1, 1));
+  }
+
+  /** @return The exact score of <code>grid</code> for <code>toMove</code>. */
+  public int score(final ConnectFourGrid grid, final Colour toMove) {
+    nodes = 0;
+    int cells = grid.getRows() * grid.getColumns();
+    return negamax(grid.clone(), toMove, SearchAI.centreFirst(grid.getColumns()), -cells, cells);
+  }
+
+  /**
+   * @return The <code>ColumnSet</code> of the columns in which
+   * <code>toMove</code> achieves the best score on the non-full
+   * <code>grid</code>.
+   */
+  public int bestColumns(final ConnectFourGrid grid, final Colour toMove) {
+    nodes = 0;
+    final ConnectFourGrid testGrid = grid.clone();
+    final int cells = grid.getRows() * grid.getColumns();
+    final int[] order = SearchAI.centreFirst(grid.getColumns());
+
+    // nothing scores more than an immediate win
+    int wins = AbstractAI.getThreats(testGrid, toMove);
+    if (!ColumnSet.isEmpty(wins)) return wins;
+
+    int bestScore = -cells - 1;
+    int bestColumns = ColumnSet.EMPTY;
+    for (int column : order) {
+      if (testGrid.getNextRow(column) == -1) continue;
+
+      // search just wide enough to tell whether this column equals the best
+      testGrid.addPiece(toMove, column);
+      int score = -negamax(testGrid, toMove.opposite(), order, -cells, -(bestScore - 1));
+      testGrid.undoMove();
+
+      if (score > bestScore) {
+        bestScore = score;
+        bestColumns = ColumnSet.with(ColumnSet.EMPTY, column);
+      } else if (score == bestScore) {
+        bestColumns = ColumnSet.with(bestColumns, column);
+      }
+    }
+    return bestColumns;
+  }
+
+  /**
+   * @return The exact score and outcome of every non-full column for
+   * <code>toMove</code> on <code>grid</code>, all found in one search.
+   */
+  public Analysis analyse(final ConnectFourGrid grid, final Colour toMove) {
+    nodes = 0;
+    final ConnectFourGrid testGrid = grid.clone();
+    final int cells = grid.getRows() * grid.getColumns();
+    final int[] order = SearchAI.centreFirst(grid.getColumns());
+    final int[] scores = new int[grid.getColumns()];
+    final Outcome[] outcomes = new Outcome[grid.getColumns()];
+    int columns = ColumnSet.EMPTY;
+    for (int column : order) {
+      if (testGrid.getNextRow(column) == -1) continue;
+      columns = ColumnSet.with(columns, column);
+      if (testGrid.wouldConnectFour(toMove, column)) {
+        scores[column] = winScore(testGrid);
+      } else {
+        testGrid.addPiece(toMove, column);
+        scores[column] = -negamax(testGrid, toMove.opposite(), order, -cells, cells);
+        testGrid.undoMove();
+      }
+      outcomes[column] = Outcome.of(scores[column]);
+    }
+    return new Analysis(columns, scores, outcomes, cells - grid.getMoveCount());
+  }
+
+  /** @return The number of positions visited by the most recent solve. */
+  public long getNodes() { return nodes; }
+
+  /**
+   * Scores <code>grid</code> with <code>colour</code> to move.
+   * @return The score, if it lies between <code>alpha</code> and
+   * <code>beta</code>; otherwise a bound beyond whichever of them it
+   * exceeds.
+   */
+  private int negamax(
+      final ConnectFourGrid grid,
+      final Colour colour,
+      final int[] order,
+      int alpha,
+      int beta) {
+    nodes++;
+
+    // an immediate win needs no further search
+    for (int column = 0; column < grid.getColumns(); column++) {
+      if (grid.wouldConnectFour(colour, column)) return winScore(grid);
+    }
+    if (grid.isFull()) return 0;
+
+    // failing an immediate win, the best possible is a win next move, or a draw
+    int emptyCells = grid.getRows() * grid.getColumns() - grid.getMoveCount();
+    int bestPossible = Math.max(emptyCells - 2, 0);
+    if (beta > bestPossible) {
+      beta = bestPossible;
+      if (alpha >= beta) return beta;
+    }
+
+    // look for a usable result from an earlier search; all are exact-depth
+    final long key = TranspositionTable.key(grid, colour);
+    int firstColumn = -1;
+    long entry = table.probe(key);
+    if (entry != 0) {
+      firstColumn = TranspositionTable.move(entry);
+      int score = TranspositionTable.score(entry);
+      switch (TranspositionTable.bound(entry)) {
+        case TranspositionTable.EXACT: return score;
+        case TranspositionTable.LOWER: if (score >= beta) return score; break;
+        case TranspositionTable.UPPER: if (score <= alpha) return score; break;
+      }
+    }
+
+    final int originalAlpha = alpha;
+    int best = -emptyCells;
+    int bestColumn = -1;
+    // try the previous best move first, then the rest in order
+    for (int i = -1; i < order.length; i++) {
+      int column = (i == -1)? firstColumn : order[i];
+      if (column == -1 || (i >= 0 && column == firstColumn)) continue;
+      if (grid.getNextRow(column) == -1) continue;
+
+      grid.addPiece(colour, column);
+      int score = -negamax(grid, colour.opposite(), order, -beta, -alpha);
+      grid.undoMove();
+
+      if (score > best) {
+        best = score;
+        bestColumn = column;
+        if (score > alpha) {
+          alpha = score;
+          if (alpha >= beta) break;  // opponent will avoid this line
+        }
+      }
+    }
+
+    int bound = (best <= originalAlpha)? TranspositionTable.UPPER
+        : (best >= beta)? TranspositionTable.LOWER : TranspositionTable.EXACT;
+    // larger subtrees are worth more to keep
+    table.store(key, emptyCells, best, bound, bestColumn);
+    return best;
+  }
+
+  /**
+   * @return The score for the colour to move winning with its next piece
+   * on <code>grid</code>: the empty cells left after it, plus one.
+   */
+  private static int winScore(final ConnectFourGrid grid) {
+    return grid.getRows() * grid.getColumns() - grid.getMoveCount();
+  }
+}
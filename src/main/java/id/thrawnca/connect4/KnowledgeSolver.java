@@ -0,0 +1,451 @@
+package id.thrawnca.connect4;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * Recognises positions that are won or drawn by knowledge alone, without
+ * searching, using the zugzwang rules of Victor Allis.
+ *
+ *<p>The colour that is not to move is the <i>controller</i>. When the
+ * number of empty cells is even, it can try to answer every move with one
+ * of its own, according to a fixed plan that divides the empty cells into
+ * small groups, each of which it answers within:
+ *<dl>
+ *  <dt>Claimeven, vertical</dt>
+ *    <dd>Two cells, one above the other: when the opponent plays the lower
+ * one, the controller plays the upper one, and so claims it. Allis calls the
+ * pair a claimeven if the upper cell is in an even row, counting from 1 at
+ * the bottom, and a vertical otherwise.</dd>
+ *  <dt>Baseinverse</dt>
+ *    <dd>The lowest empty cells of two columns: when the opponent plays one,
+ * the controller plays the other, and so gets one of the two. Baseinverses
+ * may be stacked, each becoming playable once the one below is filled.</dd>
+ *  <dt>Highinverse</dt>
+ *    <dd>The lowest three empty cells of two columns. The controller gets
+ * one of the two middle cells, one of the two upper cells, and one of the
+ * upper two cells of each column, and the opponent cannot get both the
+ * lowest cell of one column and the upper cell of the other.</dd>
+ *  <dt>Baseclaim</dt>
+ *    <dd>The lowest empty cell of a first and a third column, and the
+ * lowest two of a second. The opponent cannot get both the first column's
+ * cell and the second column's upper cell, nor both the second column's
+ * lower cell and the third column's cell.</dd>
+ *</dl>
+ * A column is divided into vertical pairs from its lowest empty cell
+ * upwards, or shares its lowest cells with one or two other columns in one
+ * of the other groups and is divided into vertical pairs above them. Each
+ * group is described by the pairs of cells the opponent cannot both get,
+ * which <code>KnowledgeSolverTest</code> checks the controller can enforce.
+ * Allis's <i>lowinverse</i> combines two verticals; answering within the
+ * plan, the controller already gets both of their upper cells, which is more
+ * than a lowinverse promises, so it needs no group of its own.
+ *
+ *<p>Every line the opponent could complete must be refuted: by passing
+ * through a claimed cell, by passing through both cells of a pair, or by
+ * lying above one of the controller's lines in each of its columns, where
+ * that line's cells are each either claimed or paired with a cell of the
+ * opposing line. The controller then completes its line before the
+ * opponent's can be, unless the opponent takes one of its cells and so
+ * gives up the paired cell. Allis calls this an <i>aftereven</i> if every
+ * cell is claimed, and a <i>before</i> or <i>specialbefore</i> otherwise,
+ * according to whether the paired cell is directly above or elsewhere.
+ *
+ *<p>If some such plan refutes every opposing line, the colour to move
+ * cannot win; if the plan also has an aftereven, the colour to move loses.
+ * Since each cell is in exactly one group, the groups of a plan are always
+ * compatible, and Allis's table of which rules may be combined reduces to
+ * the choice of plan. Allis's rules for the colour controlling zugzwang
+ * with an odd number of empty cells are not implemented.
+ *
+ *<p>A solver keeps working state between calls, so should be used by only
+ * one thread at a time.
+ *
+ * @author Carl Antuar
+ */
+public final class KnowledgeSolver {
+
+  /**
+   * A group of cells spanning two or three columns, starting at the lowest
+   * empty cell of each.
+   */
+  static final class Rule {
+
+    /** The number of cells used in each column. */
+    final int[] heights;
+
+    /**
+     * The pairs of cells of which the opponent cannot get both, each as
+     * <code>{column, height, column, height}</code>, indexing
+     * <code>heights</code> and counting up from the lowest empty cell.
+     */
+    final int[][] pairs;
+
+    Rule(final int[] heights, final int[][] pairs) {
+      this.heights = heights;
+      this.pairs = pairs;
+    }
+  }
+
+  /** Allis's highinverse. */
+  static final Rule HIGHINVERSE = new Rule(new int[] { 3, 3 }, new int[][] {
+    { 0, 1, 1, 1 }, { 0, 2, 1, 2 }, { 0, 1, 0, 2 }, { 1, 1, 1, 2 }, { 0, 0, 1, 2 }, { 1, 0, 0, 2 }
+  });
+
+  /** Allis's baseclaim. */
+  static final Rule BASECLAIM = new Rule(new int[] { 1, 2, 1 }, new int[][] {
+    { 0, 0, 1, 1 }, { 1, 0, 2, 0 }
+  });
+
+  private ConnectFourGrid grid;
+
+  private int columns;
+
+  /** The number of empty cells in each column. */
+  private int[] empties;
+
+  /** The bitboard bit of the lowest empty cell in each column. */
+  private int[] bottoms;
+
+  /** The bitboard bits of the cells of each column. */
+  private long[] columnMasks;
+
+  /** The <code>ColumnSet</code> of columns that have been given a plan. */
+  private int planned;
+
+  /** The empty cells of each line the colour to move could complete. */
+  private long[] threats;
+
+  private int threatCount;
+
+  /**
+   * The <code>ColumnSet</code> of the columns of each threat that cannot lie
+   * above any of the controller's lines, and so must be refuted within its
+   * own columns; 0 for the others.
+   */
+  private int[] untimedColumns;
+
+  /** The empty cells of each line the controller could complete. */
+  private long[] claims;
+
+  private int claimCount;
+
+  /** The pairs of cells of the plan under construction, of which the opponent cannot get both. */
+  private long[] pairs;
+
+  /** The cells paired with each bitboard bit, for the plan being checked. */
+  private final long[] partners = new long[Long.SIZE];
+
+  /**
+   * The cells of each column above the controller's lines usable by the
+   * plan being checked, listed line by line.
+   */
+  private long[] aboveCells;
+
+  /** The start of each usable line's entries in <code>aboveCells</code>. */
+  private int[] aboveStarts;
+
+  /**
+   * The partners of each unclaimed cell of the usable lines, listed line by
+   * line; an opposing line must include one from each.
+   */
+  private long[] needs;
+
+  /** The start of each usable line's entries in <code>needs</code>. */
+  private int[] needStarts;
+
+  /** Whether the plan found claims a line for the controller. */
+  private boolean controllerWins;
+
+  /**
+   * @return The best outcome that <code>toMove</code> can achieve on
+   * <code>grid</code>, if it can be shown without searching: a draw if it
+   * cannot win, or a loss if the other colour can force a win. Null if
+   * neither can be shown.
+   */
+  public Outcome upperBound(final ConnectFourGrid grid, final Colour toMove) {
+    final int rows = grid.getRows();
+    final int emptyCells = rows * grid.getColumns() - grid.getMoveCount();
+    if (emptyCells == 0 || emptyCells % 2 != 0) return null;
+    prepare(grid);
+
+    final long mine = grid.getPieces(toMove);
+    final long theirs = grid.getPieces(toMove.opposite());
+    threatCount = 0;
+    claimCount = 0;
+    for (long line : grid.getWinLines()) {
+      if ((line & theirs) == 0) threats[threatCount++] = line & ~mine;
+      if ((line & mine) == 0) claims[claimCount++] = line & ~theirs;
+    }
+
+    for (int column = 0; column < columns; column++) {
+      int height = rows - empties[column];
+      bottoms[column] = column * (rows + 1) + height;
+    }
+    for (int i = 0; i < threatCount; i++) {
+      untimedColumns[i] = canLieAbove(threats[i])? 0 : columnsOf(threats[i]);
+    }
+
+    planned = ColumnSet.EMPTY;
+    if (!plan(0, 0, 0)) return null;
+    return controllerWins? Outcome.Loss : Outcome.Draw;
+  }
+
+  /** Sizes the working arrays for <code>grid</code>, reusing them where possible. */
+  private void prepare(final ConnectFourGrid grid) {
+    if (this.grid == null || this.grid.getRows() != grid.getRows()
+        || this.grid.getColumns() != grid.getColumns()) {
+      columns = grid.getColumns();
+      empties = new int[columns];
+      bottoms = new int[columns];
+      columnMasks = new long[columns];
+      for (int column = 0; column < columns; column++) {
+        columnMasks[column] = ((1L << grid.getRows()) - 1) << (column * (grid.getRows() + 1));
+      }
+      int lines = grid.getWinLines().length;
+      threats = new long[lines];
+      untimedColumns = new int[lines];
+      claims = new long[lines];
+      pairs = new long[grid.getRows() * columns];
+      aboveCells = new long[lines * columns];
+      aboveStarts = new int[lines + 1];
+      needs = new long[lines * 4];
+      needStarts = new int[lines + 1];
+    }
+    this.grid = grid;
+    for (int column = 0; column < columns; column++) {
+      int row = grid.getNextRow(column);
+      empties[column] = (row == -1)? 0 : grid.getRows() - row;
+    }
+  }
+
+  /**
+   * Tries every way of planning the columns from <code>column</code>
+   * onwards, given the plan so far.
+   * @param claimed The cells claimed so far.
+   * @param pairCount The number of pairs so far.
+   * @return Whether some plan refutes every opposing line.
+   */
+  private boolean plan(int column, final long claimed, final int pairCount) {
+    if (!refutesPlanned(claimed, pairCount)) return false;
+    while (column < columns && ColumnSet.contains(planned, column)) column++;
+    if (column == columns) return refutesAll(claimed, pairCount);
+
+    planned |= 1 << column;
+    try {
+      // vertical pairs all the way up
+      if (empties[column] % 2 == 0
+          && plan(column + 1, claimed | uppers(column, 0), pairCount)) {
+        return true;
+      }
+
+      // groups shared with later columns, then vertical pairs
+      for (int other = column + 1; other < columns; other++) {
+        if (ColumnSet.contains(planned, other)) continue;
+        planned |= 1 << other;
+        try {
+          int most = Math.min(empties[column], empties[other]);
+          for (int count = 1; count <= most; count++) {
+            pairs[pairCount + count - 1] = (1L << (bottoms[column] + count - 1))
+                | (1L << (bottoms[other] + count - 1));
+            if ((empties[column] - count) % 2 != 0 || (empties[other] - count) % 2 != 0) continue;
+            if (plan(column + 1, claimed | uppers(column, count) | uppers(other, count),
+                pairCount + count)) {
+              return true;
+            }
+          }
+          if (apply(HIGHINVERSE, column, other, -1, claimed, pairCount)) return true;
+
+          for (int third = other + 1; third < columns; third++) {
+            if (ColumnSet.contains(planned, third)) continue;
+            planned |= 1 << third;
+            try {
+              if (apply(BASECLAIM, column, other, third, claimed, pairCount)
+                  || apply(BASECLAIM, column, third, other, claimed, pairCount)
+                  || apply(BASECLAIM, other, column, third, claimed, pairCount)
+                  || apply(BASECLAIM, other, third, column, claimed, pairCount)
+                  || apply(BASECLAIM, third, column, other, claimed, pairCount)
+                  || apply(BASECLAIM, third, other, column, claimed, pairCount)) {
+                return true;
+              }
+            } finally {
+              planned &= ~(1 << third);
+            }
+          }
+        } finally {
+          planned &= ~(1 << other);
+        }
+      }
+      return false;
+    } finally {
+      planned &= ~(1 << column);
+    }
+  }
+
+  /**
+   * Helper for <code>plan</code>. Checks the threats lying wholly in planned
+   * columns that only claimed cells and pairs can refute, so that plans
+   * failing early are abandoned early.
+   * @return Whether each of those threats is refuted.
+   */
+  private boolean refutesPlanned(final long claimed, final int pairCount) {
+    for (int i = 0; i < threatCount; i++) {
+      int threatColumns = untimedColumns[i];
+      if (threatColumns == 0 || (threatColumns & ~planned) != 0) continue;
+      if (!isRefuted(threats[i], claimed, pairCount, 0)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return Whether the line with empty cells <code>threat</code> lies
+   * above some line the controller could complete, in each of that line's
+   * columns, so that it might be refuted by timing.
+   */
+  private boolean canLieAbove(final long threat) {
+    for (int i = 0; i < claimCount; i++) {
+      if (claims[i] == 0) continue;
+      boolean above = true;
+      for (int column = 0; column < columns && above; column++) {
+        long cells = claims[i] & columnMasks[column];
+        if (cells == 0) continue;
+        long highest = Long.highestOneBit(cells);
+        above = (threat & columnMasks[column] & ~((highest << 1) - 1)) != 0;
+      }
+      if (above) return true;
+    }
+    return false;
+  }
+
+  /** @return The <code>ColumnSet</code> of the columns containing <code>cells</code>. */
+  private int columnsOf(final long cells) {
+    int set = ColumnSet.EMPTY;
+    for (int column = 0; column < columns; column++) {
+      if ((cells & columnMasks[column]) != 0) set = ColumnSet.with(set, column);
+    }
+    return set;
+  }
+
+  /**
+   * Helper for <code>plan</code>. Adds <code>rule</code> to the plan on the
+   * given columns, with vertical pairs above it, and plans the rest.
+   * @param third The column for the rule's third column, or -1 if it has two.
+   * @return Whether some plan refutes every opposing line.
+   */
+  private boolean apply(
+      final Rule rule,
+      final int first,
+      final int second,
+      final int third,
+      long claimed,
+      int pairCount) {
+    for (int i = 0; i < rule.heights.length; i++) {
+      int column = (i == 0)? first : (i == 1)? second : third;
+      int height = rule.heights[i];
+      if (empties[column] < height || (empties[column] - height) % 2 != 0) return false;
+    }
+    for (int i = 0; i < rule.heights.length; i++) {
+      claimed |= uppers((i == 0)? first : (i == 1)? second : third, rule.heights[i]);
+    }
+    final int[] ruleBottoms = { bottoms[first], bottoms[second], (third == -1)? 0 : bottoms[third] };
+    for (int[] pair : rule.pairs) {
+      pairs[pairCount++] = (1L << (ruleBottoms[pair[0]] + pair[1]))
+          | (1L << (ruleBottoms[pair[2]] + pair[3]));
+    }
+    int next = Math.min(first, second);
+    if (third != -1) next = Math.min(next, third);
+    return plan(next + 1, claimed, pairCount);
+  }
+
+  /**
+   * @return The upper cells of the vertical pairs of <code>column</code>,
+   * starting <code>offset</code> cells above its lowest empty cell.
+   */
+  private long uppers(final int column, final int offset) {
+    long cells = 0;
+    for (int i = offset + 1; i < empties[column]; i += 2) {
+      cells |= 1L << (bottoms[column] + i);
+    }
+    return cells;
+  }
+
+  /**
+   * Helper for <code>plan</code>. Checks a complete plan, and records
+   * whether it wins for the controller.
+   * @return Whether every opposing line is refuted.
+   */
+  private boolean refutesAll(final long claimed, final int pairCount) {
+    long paired = 0;
+    for (int i = 0; i < pairCount; i++) {
+      paired |= pairs[i];
+      partners[Long.numberOfTrailingZeros(pairs[i])] = 0;
+      partners[63 - Long.numberOfLeadingZeros(pairs[i])] = 0;
+    }
+    for (int i = 0; i < pairCount; i++) {
+      long low = Long.lowestOneBit(pairs[i]);
+      long high = pairs[i] & ~low;
+      partners[Long.numberOfTrailingZeros(low)] |= high;
+      partners[Long.numberOfTrailingZeros(high)] |= low;
+    }
+
+    // the controller's lines whose cells are each claimed or paired
+    controllerWins = false;
+    int lines = 0;
+    int aboveCount = 0;
+    int needCount = 0;
+    for (int i = 0; i < claimCount; i++) {
+      long claim = claims[i];
+      long unclaimed = claim & ~claimed;
+      if (claim == 0 || (unclaimed & ~paired) != 0) continue;
+
+      if (unclaimed == 0) controllerWins = true;
+      aboveStarts[lines] = aboveCount;
+      needStarts[lines++] = needCount;
+      for (int column = 0; column < columns; column++) {
+        long cells = claim & columnMasks[column];
+        if (cells == 0) continue;
+        long highest = Long.highestOneBit(cells);
+        aboveCells[aboveCount++] = columnMasks[column] & ~((highest << 1) - 1);
+      }
+      for (long cells = unclaimed; cells != 0; cells &= cells - 1) {
+        needs[needCount++] = partners[Long.numberOfTrailingZeros(cells)];
+      }
+    }
+    aboveStarts[lines] = aboveCount;
+    needStarts[lines] = needCount;
+
+    for (int i = 0; i < threatCount; i++) {
+      if (!isRefuted(threats[i], claimed, pairCount, lines)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Helper for <code>refutesAll</code>.
+   * @return Whether the line with empty cells <code>threat</code> is
+   * refuted by the plan.
+   */
+  private boolean isRefuted(
+      final long threat,
+      final long claimed,
+      final int pairCount,
+      final int lines) {
+    if ((threat & claimed) != 0) return true;
+    for (int i = 0; i < pairCount; i++) {
+      if ((threat & pairs[i]) == pairs[i]) return true;
+    }
+
+    // refuted if it lies above a usable line in every one of its columns,
+    // and takes a partner of each of that line's unclaimed cells
+    for (int i = 0; i < lines; i++) {
+      boolean refuted = true;
+      for (int j = aboveStarts[i]; j < aboveStarts[i + 1] && refuted; j++) {
+        refuted = (threat & aboveCells[j]) != 0;
+      }
+      for (int j = needStarts[i]; j < needStarts[i + 1] && refuted; j++) {
+        refuted = (threat & needs[j]) != 0;
+      }
+      if (refuted) return true;
+    }
+    return false;
+  }
+}
@@ -1,6 +1,13 @@
 package id.thrawnca.connect4;
 
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.SearchTrace.Event;
 
 /**
  * Uses the maximum AI thus far developed.
@@ -8,14 +15,52 @@ import static id.thrawnca.connect4.ConnectFourGrid.Colour;
  */
 public final class MaxAI extends AbstractAI {
 
+  /** Whether to check columns for badness concurrently. */
+  private boolean parallel;
+
+  /** The pool in which columns are checked, in parallel mode. */
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** The size in MB of the analysis cache each MaxAI starts with. */
+  public static final int DEFAULT_CACHE_SIZE = 4;
+
+  /**
+   * The number of empty cells below which each MaxAI starts solving the
+   * endgame exactly; on a standard grid this takes milliseconds.
+   */
+  public static final int DEFAULT_ENDGAME_CELLS = 16;
+
   public MaxAI(ConnectFourGrid grid, Colour aiColour) {
     super(grid, aiColour);
+    setAnalysisCache(new AnalysisCache(DEFAULT_CACHE_SIZE));
+    setEndgameSolver(new EndgameSolver(), DEFAULT_ENDGAME_CELLS);
+  }
+
+  public boolean isParallel() { return parallel; }
+
+  /**
+   * Sets whether to check columns for badness concurrently, one task per
+   * non-full column, each on its own copy of the grid. The choice of
+   * column is unaffected, apart from the random tie-break.
+   */
+  public void setParallel(final boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  /**
+   * Sets the pool in which columns are checked, in parallel mode. By
+   * default this is the common pool.
+   */
+  public void setPool(final ForkJoinPool pool) {
+    this.pool = pool;
   }
 
   /**
    * Artificial intelligence - try each of the following, in order, until a
    * move is chosen:
    *<ul>
+   *  <li>If few cells remain, solve the endgame and pick a random column
+   * achieving the best outcome.</li>
    *  <li>Check whether a column would allow the AI to win.</li>
    *  <li>Check whether a column would block an opposing win.</li>
    *  <li>Check whether a column would give the AI an n-way or consequential
@@ -29,9 +74,73 @@ public final class MaxAI extends AbstractAI {
    *</ul>
    */
   public int chooseColumn() {
-    debug("Start choosing");
-    int[] columns;          // potential columns
-    ConnectFourGrid alternateGrid;  // a cloned grid for testing moves
+    return pick(findColumns(grid.clone()));  // private grid for testing moves
+  }
+
+  /**
+   * As <code>chooseColumn()</code>, but deepens iteratively on the length of
+   * the consequentials looked for: chains of 1 threat, then 2, and so on up
+   * to <code>getMaxChainDepth()</code>, stopping once <code>budget</code>
+   * has elapsed and choosing from the columns of the last search completed.
+   * The search for chains of 1 is always completed, however small the
+   * budget, and deepening stops early once no chain reaches the limit,
+   * since longer ones would find nothing more.
+   * @param budget The time to take.
+   * @return The index of the chosen column.
+   */
+  @Override
+  public int chooseColumn(final Duration budget) {
+    final long deadline = System.nanoTime() + budget.toNanos();
+    int columns = ColumnSet.EMPTY;
+    try {
+      for (int depth = 1; ; depth++) {
+        final boolean deepest = depth >= getMaxChainDepth();
+        limitChain(deepest? UNLIMITED_CHAIN : depth);
+        columns = findColumns(grid.clone());  // private grid for testing moves
+        if (deepest || !wasChainCut()) break;
+        if (depth == 1) setDeadline(deadline);
+      }
+    } catch (CancellationException e) {
+      // out of time, unless the choice itself was cancelled
+      if (!isPastDeadline()) throw e;
+    } finally {
+      clearDeadline();
+      limitChain(UNLIMITED_CHAIN);
+    }
+    return pick(columns);
+  }
+
+  /**
+   * Analyses each of the opponent's replies in turn, as
+   * <code>chooseColumn</code> would once it is played, so that the results
+   * are in the analysis cache and the endgame solver's table. No column is
+   * picked, so pondering leaves this AI's random source untouched.
+   */
+  @Override
+  protected void ponder(final ConnectFourGrid position) {
+    final Colour opponent = aiColour.opposite();
+    try {
+      for (int column = 0; column < position.getColumns() && !isPonderingStopped(); column++) {
+        if (position.getNextRow(column) == -1 || position.wouldConnectFour(opponent, column)) continue;
+        position.addPiece(opponent, column);
+        if (!position.isFull()) findColumns(position);
+        position.undoMove();
+      }
+    } catch (CancellationException e) {
+      // stopped; the position is discarded, so need not be restored
+    }
+  }
+
+  /**
+   * Helper for <code>chooseColumn</code>. Finds the columns to choose
+   * between on <code>testGrid</code>, trying out moves on it directly.
+   * @return The <code>ColumnSet</code> of the columns to choose from.
+   */
+  private int findColumns(final ConnectFourGrid testGrid) {
+    trace(Event.Start, aiColour, -1);
+    int columns;          // potential columns
+    Classification mine;  // n-ways and consequentials for each side
+    Classification theirs;
 
     /*
      * Test for columns that should be used.
@@ -42,114 +151,163 @@ public final class MaxAI extends AbstractAI {
      * Consequentials should come after n-ways, so that self-existent n-ways
      * are not attributed to other moves.
      */
-    if ((columns = getThreats(grid, aiColour)).length > 0 // immediate win
+    if ((columns = solveEndgame(testGrid)) != ColumnSet.EMPTY  // proven best play
+        ||
+        (columns = getThreats(testGrid, aiColour)) != ColumnSet.EMPTY // immediate win
         ||
         // blocking immediate opponent win
-        (columns = getThreats(grid, aiColour.opposite())).length > 0
+        (columns = getThreats(testGrid, aiColour.opposite())) != ColumnSet.EMPTY
         ||
         // constructing n-way
-        (columns = findNWays(grid, aiColour)).length > 0
+        (columns = (mine = classify(testGrid, aiColour, true)).getNWays(true)) != ColumnSet.EMPTY
         ||
         // constructing consequential
-        (columns = findConsequentials(grid, aiColour)).length > 0
+        (columns = mine.getConsequentials(true)) != ColumnSet.EMPTY
         ||
         // blocking opponent n-way
-        (columns = findNWays(grid, aiColour.opposite())).length > 0
+        (columns = (theirs = classify(testGrid, aiColour.opposite(), true)).getNWays(true)) != ColumnSet.EMPTY
         ||
         // blocking opponent consequential
-        (columns = findConsequentials(grid, aiColour.opposite())).length > 0
+        (columns = theirs.getConsequentials(true)) != ColumnSet.EMPTY
         ||
         // constructing setup
-        (columns = findSetups(grid, aiColour)).length > 0
+        (columns = findSetups(testGrid, aiColour)) != ColumnSet.EMPTY
         ||
         // blocking opponent setup
-        (columns = findSetups(grid, aiColour.opposite())).length > 0
+        (columns = findSetups(testGrid, aiColour.opposite())) != ColumnSet.EMPTY
       ) {
-      // if one of the above found: choose a random instance of it
-      return columns[(int) (Math.random() * columns.length)];
+      // if one of the above found: choose from its instances
+      return columns;
     }
 
     // check for 'bad' columns that would allow a user win
+    boolean[] badColumns = parallel? findBadColumnsInParallel(testGrid)
+        : findBadColumns(testGrid);
+    int goodColumns = ColumnSet.EMPTY;
+    for (int i = 0; i < testGrid.getColumns(); i++) {
+      // column is still okay, therefore is 'good' if non-full
+      if (testGrid.getNextRow(i) != -1 && !badColumns[i]) goodColumns = ColumnSet.with(goodColumns, i);
+    }
+
+    // avoid bad columns if good play exists
+    return ColumnSet.isEmpty(goodColumns)? testGrid.getOpenColumns() : goodColumns;
+  }
+
+  /**
+   * Helper for <code>chooseColumn</code>.
+   * @return Whether each column of <code>grid</code> is bad, as defined by
+   * <code>isBadColumn</code>. Full columns are not checked.
+   */
+  private boolean[] findBadColumns(final ConnectFourGrid grid) {
     boolean[] badColumns = new boolean[grid.getColumns()];
-    boolean goodPlayExists = false;
     for (int i = 0; i < grid.getColumns(); i++) {
       if (grid.getNextRow(i) == -1) continue;
-      debug("is "+i+" bad?");
+      trace(Event.BadColumnCheck, aiColour, i);
+      badColumns[i] = isBadColumn(grid, i);
+    }
+    return badColumns;
+  }
 
-      alternateGrid = (ConnectFourGrid) grid.clone();
+  /**
+   * As <code>findBadColumns</code>, but checks each non-full column in a
+   * separate task, on its own copy of <code>grid</code>, since the checks
+   * mutate the grid they examine.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private boolean[] findBadColumnsInParallel(final ConnectFourGrid grid) {
+    ForkJoinTask<Boolean>[] tasks = new ForkJoinTask[grid.getColumns()];
+    for (int i = 0; i < grid.getColumns(); i++) {
+      if (grid.getNextRow(i) == -1) continue;
+      final int column = i;
+      final ConnectFourGrid columnGrid = grid.clone();
+      tasks[i] = pool.submit(new Callable<Boolean>() {
+          public Boolean call() {
+            trace(Event.BadColumnCheck, aiColour, column);
+            return isBadColumn(columnGrid, column);
+          }
+        }
+      );
+    }
 
-      // add a piece and check for threats
-      alternateGrid.addPiece(aiColour, i);
-      int[] threats = getThreats(alternateGrid, aiColour.opposite());
+    // let every check finish, even if one is cancelled, before reporting
+    for (ForkJoinTask<Boolean> task : tasks) {
+      if (task != null) task.quietlyJoin();
+    }
+    boolean[] badColumns = new boolean[grid.getColumns()];
+    for (int i = 0; i < grid.getColumns(); i++) {
+      if (tasks[i] != null) badColumns[i] = tasks[i].join();
+    }
+    return badColumns;
+  }
 
+  /**
+   * Helper for <code>chooseColumn</code>. Checks whether playing in the
+   * non-full <code>column</code> of <code>grid</code> would allow the
+   * opponent a win, n-way, consequential or setup.
+   */
+  private boolean isBadColumn(final ConnectFourGrid grid, final int column) {
+    // add a piece and check for threats
+    grid.addPiece(aiColour, column);
+    try {
       // columns creating opponent threats are bad
-      if (threats.length > 0) {
-        debug(i+" would allow win");
-        badColumns[i] = true;
-        continue;
+      if (!ColumnSet.isEmpty(getThreats(grid, aiColour.opposite()))) {
+        trace(Event.AllowsWin, aiColour.opposite(), column);
+        return true;
       }
 
       /*
        * Columns allowing opponent n-way or consequential are bad, unless
        * they stop the opponent with a threat.
        */
-      NWayBad:
-      if (findNWays(alternateGrid, aiColour.opposite()).length > 0
-          ||
-          findConsequentials(alternateGrid, aiColour.opposite()).length > 0
-          ) {
-        if ((threats = getThreats(alternateGrid, aiColour)).length > 0) {
-          // can only be 1 threat, or n-way would have been found
-          ConnectFourGrid alternateGrid2 = (ConnectFourGrid) alternateGrid.clone();
-          alternateGrid2.addPiece(aiColour.opposite(), threats[0]);
-          // if blocking threat alleviated danger, column is non-bad
-          if ((threats = getThreats(alternateGrid2, aiColour.opposite())).length <= 1
-              &&
-              findNWays(alternateGrid2, aiColour.opposite()).length == 0
-              &&
-              findConsequentials(alternateGrid2, aiColour.opposite()).length == 0
-            ) {
-            break NWayBad;
-          }
-        }
-        debug("allowed by "+i);
-        badColumns[i] = true;
-        continue;
+      Classification theirs = classify(grid, aiColour.opposite(), true);
+      if ((!ColumnSet.isEmpty(theirs.getNWays(true))
+            ||
+            !ColumnSet.isEmpty(theirs.getConsequentials(true))
+          )
+          && !isDangerBlocked(grid, false)) {
+        trace(Event.AllowsForcedWin, aiColour.opposite(), column);
+        return true;
       }
 
       /*
        * Columns allowing opponent setup are bad, unless they stop the
        * opponent with a threat.
        */
-      SetupBad:
-      if (findSetups(alternateGrid, aiColour.opposite()).length > 0) {
-        if ((threats = getThreats(alternateGrid, aiColour)).length > 0) {
-          // can only be 1 threat, or n-way would have been found
-          ConnectFourGrid alternateGrid2 = (ConnectFourGrid) alternateGrid.clone();
-          alternateGrid2.addPiece(aiColour.opposite(), threats[0]);
-          // if blocking threat alleviated danger, column is non-bad
-          if ((threats = getThreats(alternateGrid2, aiColour.opposite())).length <= 1
-              &&
-              findSetups(alternateGrid2, aiColour.opposite()).length == 0
-            ) {
-            break SetupBad;
-          }
-        }
-        debug("allowed by "+i);
-        badColumns[i] = true;
-        continue;
+      if (!ColumnSet.isEmpty(findSetups(grid, aiColour.opposite()))
+          && !isDangerBlocked(grid, true)) {
+        trace(Event.AllowsForcedWin, aiColour.opposite(), column);
+        return true;
       }
 
-      // column is still okay, therefore is 'good' if non-full
-      if (grid.getNextRow(i) != -1) goodPlayExists = true;
+      return false;
+    } finally {
+      grid.undoMove();
     }
+  }
 
-    // avoid bad columns if good play exists
-    int column;
-    do {
-      column = pickColumn(grid);
-    } while (goodPlayExists && badColumns[column] == true);
+  /**
+   * Helper for <code>isBadColumn</code>. Checks whether the AI has a threat
+   * on <code>grid</code> which, once blocked by the opponent, leaves the
+   * opponent without the danger under examination.
+   * @param setups Whether the danger is an opponent setup, rather than an
+   * opponent n-way or consequential.
+   */
+  private boolean isDangerBlocked(final ConnectFourGrid grid, final boolean setups) {
+    int threats = getThreats(grid, aiColour);
+    if (ColumnSet.isEmpty(threats)) return false;
 
-    return column;
+    // can only be 1 threat, or n-way would have been found
+    grid.addPiece(aiColour.opposite(), ColumnSet.first(threats));
+    try {
+      // if blocking threat alleviated danger, column is non-bad
+      if (ColumnSet.size(getThreats(grid, aiColour.opposite())) > 1) return false;
+      if (setups) return ColumnSet.isEmpty(findSetups(grid, aiColour.opposite()));
+      Classification theirs = classify(grid, aiColour.opposite(), true);
+      return ColumnSet.isEmpty(theirs.getNWays(true))
+          &&
+          ColumnSet.isEmpty(theirs.getConsequentials(true));
+    } finally {
+      grid.undoMove();
+    }
   }
 }
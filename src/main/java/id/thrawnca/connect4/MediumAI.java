@@ -1,6 +1,7 @@
 package id.thrawnca.connect4;
 
 import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.SearchTrace.Event;
 
 /**
  * Detects:<br>
@@ -22,57 +23,54 @@ public final class MediumAI extends AbstractAI {
   }
 
   public int chooseColumn() {
-    ConnectFourGrid alternateGrid;
-    int[] columns;
-    if ((columns = getThreats(grid, aiColour)).length > 0 // immediate win
+    final ConnectFourGrid testGrid = grid.clone();  // private grid for testing moves
+    int columns;
+    if ((columns = solveEndgame(testGrid)) != ColumnSet.EMPTY // endgame solved
+        ||
+        (columns = getThreats(testGrid, aiColour)) != ColumnSet.EMPTY // immediate win
         ||
         // blocking immediate opponent win
-        (columns = getThreats(grid, aiColour.opposite())).length > 0
+        (columns = getThreats(testGrid, aiColour.opposite())) != ColumnSet.EMPTY
         ||
         // constructing n-way
-        (columns = findNWays(grid, aiColour)).length > 0
+        (columns = findNWays(testGrid, aiColour)) != ColumnSet.EMPTY
         ||
         // blocking opponent n-way
-        (columns = findNWays(grid, aiColour.opposite())).length > 0
+        (columns = findNWays(testGrid, aiColour.opposite())) != ColumnSet.EMPTY
         ) {
       // if one of the above found: choose a random instance of it
-      return columns[(int) (Math.random() * columns.length)];
+      return pick(columns);
     }
 
     // check for 'bad' columns that would allow opponent win
-    boolean[] badColumns = new boolean[grid.getColumns()];
-    boolean goodPlayExists = false;
+    int goodColumns = ColumnSet.EMPTY;
     for (int i = 0; i < grid.getColumns(); i++) {
-      alternateGrid = (ConnectFourGrid) grid.clone();
+      // full columns can never be chosen
+      if (testGrid.getNextRow(i) == -1) continue;
 
       // add a piece and check for threats
-      alternateGrid.addPiece(aiColour, i);
-      int[] threats = getThreats(alternateGrid, aiColour.opposite());
-
-      // columns creating opponent threats are bad
-      if (threats.length > 0) {
-        debug(i+" would allow win");
-        badColumns[i] = true;
-        continue;
-      }
+      testGrid.addPiece(aiColour, i);
+      try {
+        // columns creating opponent threats are bad
+        if (!ColumnSet.isEmpty(getThreats(testGrid, aiColour.opposite()))) {
+          trace(Event.AllowsWin, aiColour.opposite(), i);
+          continue;
+        }
 
-      // columns allowing opponent n-way are bad
-      if (findNWays(alternateGrid, aiColour.opposite()).length > 0) {
-        debug("allowed by "+i);
-        badColumns[i] = true;
-        continue;
+        // columns allowing opponent n-way are bad
+        if (!ColumnSet.isEmpty(findNWays(testGrid, aiColour.opposite()))) {
+          trace(Event.AllowsForcedWin, aiColour.opposite(), i);
+          continue;
+        }
+      } finally {
+        testGrid.undoMove();
       }
 
-      // column is still okay, therefore is 'good' if non-full
-      if (grid.getNextRow(i) != -1) goodPlayExists = true;
+      // column is still okay, therefore is 'good'
+      goodColumns = ColumnSet.with(goodColumns, i);
     }
 
     // avoid bad columns if good play exists
-    int column;
-    do {
-      column = pickColumn(grid);  // choose a random column until non-bad
-    } while (goodPlayExists && badColumns[column] == true);
-
-    return column;
+    return ColumnSet.isEmpty(goodColumns)? pickColumn(testGrid) : pick(goodColumns);
   }
 }
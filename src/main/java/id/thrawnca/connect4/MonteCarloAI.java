@@ -0,0 +1,377 @@
+package id.thrawnca.connect4;
+
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.SearchTrace.Event;
+
+/**
+ * Chooses columns by Monte Carlo tree search: it plays many quick games
+ * from the current position, and grows a tree of the positions they pass
+ * through, steering later games towards the moves that have done best so
+ * far (UCT). It plays the column tried most often.
+ *
+ *<p>Each game is played out with the same checks as <code>EasyAI</code>:
+ * win if possible, otherwise block an opposing win, otherwise play at
+ * random. No evaluation of positions is needed, so the AI plays on every
+ * grid size <code>ConnectFourGrid</code> supports without tuning, and grows
+ * stronger the more games it is given.
+ *
+ *<p>Games can be played on several threads at once, sharing the tree; see
+ * <code>setThreads</code>.
+ *
+ * @author Carl Antuar
+ */
+public final class MonteCarloAI extends AbstractAI {
+
+  /** The number of games played if none is specified. */
+  public static final int DEFAULT_PLAYOUTS = 20000;
+
+  /**
+   * The UCT exploration constant: larger values spread games more evenly
+   * between moves, smaller values concentrate them on the best so far.
+   */
+  private static final double EXPLORATION = Math.sqrt(2);
+
+  /** How many games to play between checks of the time. */
+  private static final int TIME_CHECK_INTERVAL = 64;
+
+  /** How many games to play between reports of progress. */
+  private static final int REPORT_INTERVAL = 4096;
+
+  /** The number of games to play. */
+  private final int playouts;
+
+  /** The columns in the order in which to try them. */
+  private final int[] columnOrder;
+
+  /** The number of threads to play with, including the calling thread. */
+  private int threads = 1;
+
+  /** The pool in which helper threads play. */
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** The number of games played by the most recent search. */
+  private long playoutCount;
+
+  /**
+   * Constructs a new MonteCarloAI choosing moves for <code>aiColour</code> on
+   * <code>grid</code>, playing <code>DEFAULT_PLAYOUTS</code> games per move.
+   */
+  public MonteCarloAI(ConnectFourGrid grid, Colour aiColour) {
+    this(grid, aiColour, DEFAULT_PLAYOUTS);
+  }
+
+  /**
+   * Constructs a new MonteCarloAI choosing moves for <code>aiColour</code> on
+   * <code>grid</code>, playing <code>playouts</code> games per move.
+   */
+  public MonteCarloAI(ConnectFourGrid grid, Colour aiColour, int playouts) {
+    super(grid, aiColour);
+    if (playouts < 1) {
+      throw new IllegalArgumentException("Playout count must be positive: " + playouts);
+    }
+    this.playouts = playouts;
+    this.columnOrder = SearchAI.centreFirst(grid.getColumns());
+  }
+
+  /** @return The number of threads this AI plays with. */
+  public int getThreads() { return threads; }
+
+  /**
+   * Sets the number of threads to play with. The calling thread always
+   * plays; any others are helpers run in this AI's <code>ForkJoinPool</code>.
+   * All threads grow the same tree, and each counts a game as lost until
+   * its result is known (virtual loss), so that threads spread out over
+   * different moves rather than all following the same one.
+   * @param threads The total number of threads, at least 1.
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Thread count must be positive: " + threads);
+    }
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the pool in which helper threads play. By default this is the
+   * common pool.
+   */
+  public void setPool(final ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /** @return The number of games played by the most recent search. */
+  public long getPlayouts() { return playoutCount; }
+
+  /**
+   * Plays this AI's number of games, and chooses the column tried most
+   * often.
+   * @return The index of the chosen column.
+   */
+  public int chooseColumn() {
+    return search(playouts, 0);
+  }
+
+  /**
+   * Plays games until <code>budget</code> has elapsed, and chooses the
+   * column tried most often.
+   * @param budget The time to take.
+   * @return The index of the chosen column.
+   */
+  @Override
+  public int chooseColumn(final Duration budget) {
+    return search(Long.MAX_VALUE, System.nanoTime() + budget.toNanos());
+  }
+
+  /**
+   * Chooses a column, helped by any extra threads.
+   * @param games The number of games to play.
+   * @param deadline The <code>System.nanoTime</code> at which to stop
+   * playing, or 0 to play every game regardless of time.
+   */
+  private int search(final long games, final long deadline) {
+    final int solved = solveEndgame(grid);
+    if (solved != ColumnSet.EMPTY) return pick(solved);
+
+    trace(Event.Start, aiColour, -1);
+    final Node root = new Node(-1, false);
+    final AtomicLong remaining = new AtomicLong(games);
+
+    final ForkJoinTask<?>[] helperTasks = new ForkJoinTask<?>[threads - 1];
+    for (int i = 0; i < helperTasks.length; i++) {
+      final ConnectFourGrid helperGrid = grid.clone();
+      final SplittableRandom helperRandom = getRandom().split();
+      helperTasks[i] = pool.submit(new Runnable() {
+          public void run() { play(root, helperGrid, helperRandom, remaining, deadline, false); }
+        }
+      );
+    }
+
+    try {
+      play(root, grid.clone(), getRandom(), remaining, deadline, true);
+    } finally {
+      for (ForkJoinTask<?> task : helperTasks) task.quietlyJoin();
+    }
+    playoutCount = root.visits;
+
+    // play the column tried most often
+    if (root.children == null) return pickColumn(grid);
+    int column = pick(mostVisited(root));
+    reportProgress(depth(root), playoutCount, column);
+    return column;
+  }
+
+  /** @return The <code>ColumnSet</code> of the children of <code>node</code> tried most often. */
+  private static int mostVisited(final Node node) {
+    Node[] children = node.children;
+    int mostVisits = -1;
+    int columns = ColumnSet.EMPTY;
+    for (int column = 0; column < children.length; column++) {
+      if (children[column] == null) continue;
+      int visits = children[column].visits;
+      if (visits > mostVisits) {
+        mostVisits = visits;
+        columns = ColumnSet.with(ColumnSet.EMPTY, column);
+      } else if (visits == mostVisits) {
+        columns = ColumnSet.with(columns, column);
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * @return The number of moves in the line of play most often tried from
+   * <code>root</code>, as far as the tree goes.
+   */
+  private static int depth(final Node root) {
+    int depth = 0;
+    for (Node node = root; node.children != null && !node.terminal; depth++) {
+      int columns = mostVisited(node);
+      if (ColumnSet.isEmpty(columns)) break;
+      node = node.children[ColumnSet.first(columns)];
+    }
+    return depth;
+  }
+
+  /**
+   * Plays games on <code>grid</code>, a private copy of the position at
+   * <code>root</code>, until <code>remaining</code> runs out or the
+   * deadline passes. Random moves are chosen by <code>random</code>, which
+   * no other thread uses.
+   * @param reporting Whether to report progress as games are played; only
+   * one thread does so.
+   */
+  private void play(
+      final Node root,
+      final ConnectFourGrid grid,
+      final SplittableRandom random,
+      final AtomicLong remaining,
+      final long deadline,
+      final boolean reporting) {
+    final Node[] path = new Node[grid.getRows() * grid.getColumns() - grid.getMoveCount() + 1];
+    for (int games = 0; remaining.getAndDecrement() > 0; games++) {
+      if (games % TIME_CHECK_INTERVAL == 0 && games > 0) {
+        checkCancelled();
+        if (deadline != 0 && System.nanoTime() - deadline > 0) return;
+        if (reporting && games % REPORT_INTERVAL == 0) {
+          reportProgress(depth(root), root.visits, ColumnSet.first(mostVisited(root)));
+        }
+      }
+      playout(root, grid, path, random);
+    }
+  }
+
+  /**
+   * Plays one game: follows the tree from <code>root</code> to a new
+   * position, plays out the rest of the game, and credits the result to
+   * each move along the way. <code>grid</code> is restored afterwards.
+   * @param path Space for the nodes followed.
+   */
+  private void playout(
+      final Node root,
+      final ConnectFourGrid grid,
+      final Node[] path,
+      final SplittableRandom random) {
+    // selection: follow the best moves until reaching a new position
+    Node node = root;
+    Colour colour = aiColour;
+    int length = 0;
+    VISITS.incrementAndGet(root);
+    while (!node.terminal) {
+      Node child = select(node, node.expand(grid, colour));
+      grid.addPiece(colour, child.column);
+      colour = colour.opposite();
+      path[length++] = child;
+      // counts as a loss until the score is added
+      if (VISITS.incrementAndGet(child) == 1) break;
+      node = child;
+    }
+
+    // simulation: the winner, or null for a draw
+    Colour winner;
+    int rolloutMoves = 0;
+    if (path[length - 1].terminal) {
+      winner = path[length - 1].winning? colour.opposite() : null;
+    } else {
+      winner = null;
+      while (!grid.isFull()) {
+        int threats = getThreats(grid, colour);
+        if (!ColumnSet.isEmpty(threats)) {
+          winner = colour;
+          break;
+        }
+        int blocks = getThreats(grid, colour.opposite());
+        int column = ColumnSet.pick(ColumnSet.isEmpty(blocks)? grid.getOpenColumns() : blocks, random);
+        grid.addPiece(colour, column);
+        rolloutMoves++;
+        colour = colour.opposite();
+      }
+    }
+    for (int i = 0; i < rolloutMoves; i++) grid.undoMove();
+
+    // backpropagation: 2 for a win by the move's colour, 1 for a draw
+    Colour mover = aiColour;
+    for (int i = 0; i < length; i++) {
+      int score = (winner == null)? 1 : (winner == mover)? 2 : 0;
+      if (score != 0) SCORE.addAndGet(path[i], score);
+      grid.undoMove();
+      mover = mover.opposite();
+    }
+  }
+
+  /**
+   * @return The child of <code>node</code> with the best UCT value: the
+   * first not yet tried, or else the one best balancing its average score
+   * against how rarely it has been tried.
+   */
+  private Node select(final Node node, final Node[] children) {
+    final double logVisits = Math.log(Math.max(node.visits, 1));
+    Node best = null;
+    double bestValue = Double.NEGATIVE_INFINITY;
+    for (int column : columnOrder) {
+      Node child = children[column];
+      if (child == null) continue;
+      int visits = child.visits;
+      if (visits == 0) return child;
+
+      double value = child.score / (2.0 * visits)
+          + EXPLORATION * Math.sqrt(logVisits / visits);
+      if (value > bestValue) {
+        bestValue = value;
+        best = child;
+      }
+    }
+    return best;
+  }
+
+  private static final AtomicIntegerFieldUpdater<Node> VISITS =
+      AtomicIntegerFieldUpdater.newUpdater(Node.class, "visits");
+
+  private static final AtomicIntegerFieldUpdater<Node> SCORE =
+      AtomicIntegerFieldUpdater.newUpdater(Node.class, "score");
+
+  /**
+   * A position in the search tree, reached by a move in
+   * <code>column</code>. Its statistics are from the point of view of the
+   * colour that made that move.
+   */
+  private static final class Node {
+
+    /** The column played to reach this position, or -1 at the root. */
+    final int column;
+
+    /** Whether the move reaching this position won the game. */
+    final boolean winning;
+
+    /** Whether the game is over in this position. */
+    final boolean terminal;
+
+    /** The number of games that have passed through this position. */
+    volatile int visits;
+
+    /** Two points for each game won by the mover, one for each draw. */
+    volatile int score;
+
+    /** The positions after each column, null for full columns; null until expanded. */
+    volatile Node[] children;
+
+    Node(final int column, final boolean winning, final boolean terminal) {
+      this.column = column;
+      this.winning = winning;
+      this.terminal = terminal;
+    }
+
+    Node(final int column, final boolean terminal) {
+      this(column, terminal, terminal);
+    }
+
+    /**
+     * @return The children of this position, which is on
+     * <code>grid</code> with <code>toMove</code> to play, creating them if
+     * need be.
+     */
+    Node[] expand(final ConnectFourGrid grid, final Colour toMove) {
+      Node[] result = children;
+      if (result != null) return result;
+      synchronized (this) {
+        if (children == null) {
+          boolean lastCell = grid.getMoveCount() + 1 == grid.getRows() * grid.getColumns();
+          Node[] created = new Node[grid.getColumns()];
+          for (int column = 0; column < created.length; column++) {
+            if (grid.getNextRow(column) == -1) continue;
+            boolean wins = grid.wouldConnectFour(toMove, column);
+            created[column] = new Node(column, wins, wins || lastCell);
+          }
+          children = created;
+        }
+        return children;
+      }
+    }
+  }
+}
@@ -3,7 +3,8 @@ package id.thrawnca.connect4;
 import static id.thrawnca.connect4.ConnectFourGrid.Colour;
 
 /**
- * Chooses a random column. Uses no AI.
+ * Chooses a random column. Uses no AI, beyond any endgame solver it is
+ * given.
  * @author Carl Antuar
  */
 public final class NoAI extends AbstractAI {
@@ -13,10 +14,13 @@ public final class NoAI extends AbstractAI {
   }
 
   /**
-   * Chooses a random non-full column.
+   * Chooses a random non-full column, or one of the endgame solver's best
+   * columns if it has solved the position.
    * @return The index of the chosen column.
    */
   public int chooseColumn() {
+    final int solved = solveEndgame(grid);
+    if (solved != ColumnSet.EMPTY) return pick(solved);
     return pickColumn(grid);
   }
 
@@ -0,0 +1,231 @@
+package id.thrawnca.connect4;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * A read-only table of the best columns in opening positions, memory-mapped
+ * from a file so that lookups cost no heap and no search.
+ *
+ *<p>Books are generated offline, by <code>generate</code> or by running
+ * this class:
+ *<pre>
+ *  java id.thrawnca.connect4.OpeningBook book.bin [plies] [depth]
+ *</pre>
+ * which searches every position up to <code>plies</code> moves into a game
+ * on the standard grid with a <code>SearchAI</code> of the given depth.
+ *
+ *<p>The file holds a header, then one entry per position, sorted by key:
+ *<pre>
+ *  int   MAGIC
+ *  byte  rows
+ *  byte  columns
+ *  short plies
+ *  (long key, short ColumnSet) * entries
+ *</pre>
+ * where each key is the <code>TranspositionTable.key</code> of the position
+ * with the colour to move.
+ *
+ * @author Carl Antuar
+ */
+public final class OpeningBook {
+
+  /**
+   * Identifies opening book files: "C4B2", version 2 of the format, whose
+   * keys include the grid size.
+   */
+  static final int MAGIC = 0x43344232;
+
+  /** The number of plies searched by the book generator if none is given. */
+  public static final int DEFAULT_PLIES = 4;
+
+  /** The search depth used by the book generator if none is given. */
+  public static final int DEFAULT_DEPTH = 10;
+
+  private static final int HEADER_BYTES = 8;
+
+  private static final int ENTRY_BYTES = Long.BYTES + Short.BYTES;
+
+  private final ByteBuffer entries;
+
+  private final int count;
+
+  private final int rows;
+
+  private final int columns;
+
+  private final int plies;
+
+  private OpeningBook(final ByteBuffer buffer) throws IOException {
+    if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not an opening book");
+    }
+    this.rows = buffer.get(4);
+    this.columns = buffer.get(5);
+    this.plies = buffer.getShort(6);
+    if ((buffer.limit() - HEADER_BYTES) % ENTRY_BYTES != 0) {
+      throw new IOException("Truncated opening book");
+    }
+    buffer.position(HEADER_BYTES);
+    this.entries = buffer.slice();
+    this.count = entries.limit() / ENTRY_BYTES;
+  }
+
+  /**
+   * Maps the opening book in <code>file</code> into memory. The mapping
+   * remains valid until the book is garbage collected.
+   */
+  public static OpeningBook open(final Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new OpeningBook(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** @return The number of rows in the grids this book covers. */
+  public int getRows() { return rows; }
+
+  /** @return The number of columns in the grids this book covers. */
+  public int getColumns() { return columns; }
+
+  /** @return The number of moves into a game that this book covers. */
+  public int getPlies() { return plies; }
+
+  /** @return The number of positions in this book. */
+  public int size() { return count; }
+
+  /**
+   * @return The <code>ColumnSet</code> of the best columns for
+   * <code>toMove</code> on <code>grid</code>, or <code>ColumnSet.EMPTY</code>
+   * if the position is not in this book.
+   */
+  public int lookup(final ConnectFourGrid grid, final Colour toMove) {
+    if (grid.getRows() != rows || grid.getColumns() != columns
+        || grid.getMoveCount() > plies) {
+      return ColumnSet.EMPTY;
+    }
+
+    // binary search on the sorted keys
+    final long key = TranspositionTable.key(grid, toMove);
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midKey = entries.getLong(mid * ENTRY_BYTES);
+      if (midKey < key) {
+        low = mid + 1;
+      } else if (midKey > key) {
+        high = mid - 1;
+      } else {
+        return entries.getShort(mid * ENTRY_BYTES + Long.BYTES) & 0xffff;
+      }
+    }
+    return ColumnSet.EMPTY;
+  }
+
+  /**
+   * Searches every position up to <code>plies</code> moves into a game on a
+   * grid of the given size, with either colour moving first, and writes the
+   * best columns for each to <code>file</code>.
+   * @param depth The depth to which <code>SearchAI</code> searches each
+   * position.
+   */
+  public static void generate(
+      final Path file,
+      final int rows,
+      final int columns,
+      final int plies,
+      final int depth) throws IOException {
+    if (plies < 0 || plies > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Unsupported book plies: " + plies);
+    }
+    if (columns > Short.SIZE) {
+      throw new IllegalArgumentException("Unsupported book columns: " + columns);
+    }
+
+    final ConnectFourGrid grid = new ConnectFourGrid(rows, columns);
+    // one searcher per colour, sharing results between positions
+    final SearchAI[] searchers = new SearchAI[Colour.values().length];
+    final TranspositionTable table = new TranspositionTable(SearchAI.DEFAULT_TABLE_SIZE);
+    for (Colour colour : Colour.values()) {
+      searchers[colour.ordinal()] = new SearchAI(grid, colour, depth);
+      searchers[colour.ordinal()].setTranspositionTable(table);
+    }
+
+    final Map<Long, Integer> book = new HashMap<Long, Integer>();
+    for (Colour first : Colour.values()) {
+      addPositions(grid, first, plies, searchers, book);
+    }
+
+    long[] keys = new long[book.size()];
+    int i = 0;
+    for (long key : book.keySet()) keys[i++] = key;
+    Arrays.sort(keys);
+
+    try (OutputStream stream = Files.newOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+      out.writeInt(MAGIC);
+      out.writeByte(rows);
+      out.writeByte(columns);
+      out.writeShort(plies);
+      for (long key : keys) {
+        out.writeLong(key);
+        out.writeShort(book.get(key));
+      }
+    }
+  }
+
+  /**
+   * Helper for <code>generate</code>. Records the best columns for
+   * <code>toMove</code> on <code>grid</code>, and for every position
+   * following it within <code>plies</code> moves, unless already recorded.
+   * @param searchers The AI searching for each colour, on <code>grid</code>.
+   */
+  private static void addPositions(
+      final ConnectFourGrid grid,
+      final Colour toMove,
+      final int plies,
+      final SearchAI[] searchers,
+      final Map<Long, Integer> book) {
+    long key = TranspositionTable.key(grid, toMove);
+    if (book.containsKey(key) || grid.isFull()) return;
+    book.put(key, searchers[toMove.ordinal()].findBestColumns());
+
+    if (plies == 0) return;
+    for (int column = 0; column < grid.getColumns(); column++) {
+      // positions after a win are never reached
+      if (grid.getNextRow(column) == -1 || grid.wouldConnectFour(toMove, column)) continue;
+      grid.addPiece(toMove, column);
+      addPositions(grid, toMove.opposite(), plies - 1, searchers, book);
+      grid.undoMove();
+    }
+  }
+
+  /**
+   * Generates an opening book for the standard grid.
+   * @param args The output file, then optionally the number of plies and
+   * the search depth.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 3) {
+      System.err.println("Usage: OpeningBook file [plies] [depth]");
+      System.exit(1);
+    }
+    int plies = (args.length > 1)? Integer.parseInt(args[1]) : DEFAULT_PLIES;
+    int depth = (args.length > 2)? Integer.parseInt(args[2]) : DEFAULT_DEPTH;
+    ConnectFourGrid grid = new ConnectFourGrid();
+    generate(Paths.get(args[0]), grid.getRows(), grid.getColumns(), plies, depth);
+  }
+}
@@ -0,0 +1,26 @@
+package id.thrawnca.connect4;
+
+/**
+ * The result of a game with perfect play, from the point of view of one
+ * colour.
+ *
+ * @author Carl Antuar
+ */
+public enum Outcome {
+
+  Loss, Draw, Win;
+
+  /** @return This outcome from the point of view of the other colour. */
+  public Outcome opposite() {
+    switch (this) {
+      case Loss: return Win;
+      case Win: return Loss;
+      default: return Draw;
+    }
+  }
+
+  /** @return The outcome of a solver score: positive wins, negative loses. */
+  public static Outcome of(final int score) {
+    return (score > 0)? Win : (score < 0)? Loss : Draw;
+  }
+}
@@ -0,0 +1,20 @@
+package id.thrawnca.connect4;
+
+/**
+ * Told of an AI's progress while it chooses a column in the background; see
+ * <code>AbstractAI.chooseColumnAsync</code>. Reports are made on the
+ * searching threads, so should be handled quickly; a GUI would hand them
+ * over to its own thread.
+ * @author Carl Antuar
+ */
+public interface ProgressListener {
+
+  /**
+   * Reports the best column found so far. AIs that do not search report
+   * nothing.
+   * @param depth The number of moves ahead searched so far.
+   * @param nodes The number of positions examined so far.
+   * @param column The best column found so far.
+   */
+  void progress(int depth, long nodes, int column);
+}
@@ -0,0 +1,269 @@
+package id.thrawnca.connect4;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * Proves the outcome of positions by depth-first proof-number search
+ * (df-pn), for analysing games rather than playing them.
+ *
+ *<p>Proof-number search expands whichever position is closest to settling
+ * the question, so it proves forced wins and losses far sooner than a
+ * full-width search, however deep they lie. It answers yes-or-no questions,
+ * so each position is solved with up to two proofs: whether the colour to
+ * move wins, and if not, whether it at least draws. Positions that
+ * <code>KnowledgeSolver</code> recognises are settled without expanding
+ * them, which is where proof-number search is otherwise weakest: proving
+ * that a win cannot be forced.
+ *
+ *<p>Proof and disproof numbers are kept in a table of fixed size, replacing
+ * older entries as needed, and reused when analysing related positions. A
+ * search that visits more than the node limit is abandoned, and the
+ * position reported as unsolved.
+ *
+ * @author Carl Antuar
+ */
+public final class ProofNumberSolver {
+
+  /** The number of positions a solve may visit if no limit is given. */
+  public static final long DEFAULT_NODE_LIMIT = 10000000;
+
+  /** The size in MB of the proof-number table if none is given. */
+  public static final int DEFAULT_TABLE_SIZE = 16;
+
+  /** A proof or disproof number meaning that the question cannot be settled that way. */
+  private static final int INFINITY = 100000000;
+
+  private static final int BYTES_PER_ENTRY = Long.BYTES + 2 * Integer.BYTES;
+
+  /**
+   * Mixed into position keys to tell questions apart, indexed by attacker
+   * and whether a draw suffices, so that results for every question can
+   * share the table and be reused from solve to solve.
+   */
+  private static final long[] QUESTION_KEYS = {
+    0L, 0x5bd1e9955bd1e995L, 0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL
+  };
+
+  /** Thrown to abandon a search that has reached the node limit. */
+  private static final class AbortException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    AbortException() {
+      super("Node limit reached", null, false, false);
+    }
+  }
+
+  private static final AbortException ABORT = new AbortException();
+
+  /** The fewest empty cells for which to consult <code>KnowledgeSolver</code>. */
+  private static final int KNOWLEDGE_CELLS = 8;
+
+  private final long nodeLimit;
+
+  private final KnowledgeSolver knowledge = new KnowledgeSolver();
+
+  /** The position key of each entry. */
+  private final long[] keys;
+
+  /**
+   * The proof (phi) and disproof (delta) numbers of each entry, from the
+   * point of view of the colour to move; both are 0 in empty entries.
+   */
+  private final int[] phis;
+
+  private final int[] deltas;
+
+  private final int mask;
+
+  /** The colour trying to prove the current question. */
+  private Colour attacker;
+
+  /** Whether the attacker is content with a draw in the current question. */
+  private boolean drawSuffices;
+
+  /** Mixed into position keys for the current question. */
+  private long questionKey;
+
+  /** The columns in the order in which to try them. */
+  private int[] order;
+
+  /** The number of positions visited by the most recent solve. */
+  private long nodes;
+
+  public ProofNumberSolver() {
+    this(DEFAULT_NODE_LIMIT, DEFAULT_TABLE_SIZE);
+  }
+
+  /**
+   * Constructs a new solver that visits at most <code>nodeLimit</code>
+   * positions per solve, and keeps a table of at most
+   * <code>megabytes</code> MB.
+   */
+  public ProofNumberSolver(final long nodeLimit, final int megabytes) {
+    if (nodeLimit < 1) {
+      throw new IllegalArgumentException("Node limit must be positive: " + nodeLimit);
+    }
+    if (megabytes < 1 || megabytes > 8192) {
+      throw new IllegalArgumentException("Unsupported table size: " + megabytes + "MB");
+    }
+    long entries = Long.highestOneBit(((long) megabytes << 20) / BYTES_PER_ENTRY);
+    entries = Math.min(entries, Integer.highestOneBit(Integer.MAX_VALUE));
+    this.nodeLimit = nodeLimit;
+    this.keys = new long[(int) entries];
+    this.phis = new int[(int) entries];
+    this.deltas = new int[(int) entries];
+    this.mask = (int) entries - 1;
+  }
+
+  /**
+   * @return The outcome of <code>grid</code> with perfect play, for
+   * <code>toMove</code>, or null if it could not be proved within the node
+   * limit.
+   */
+  public Outcome solve(final ConnectFourGrid grid, final Colour toMove) {
+    nodes = 0;
+    order = SearchAI.centreFirst(grid.getColumns());
+    final ConnectFourGrid testGrid = grid.clone();
+    try {
+      if (prove(testGrid, toMove, false)) return Outcome.Win;
+      return prove(testGrid, toMove, true)? Outcome.Draw : Outcome.Loss;
+    } catch (AbortException e) {
+      return null;
+    }
+  }
+
+  /** @return The number of positions visited by the most recent solve. */
+  public long getNodes() { return nodes; }
+
+  /**
+   * Settles whether <code>toMove</code> wins on <code>grid</code>, or if
+   * <code>drawSuffices</code>, whether it wins or draws.
+   */
+  private boolean prove(final ConnectFourGrid grid, final Colour toMove, final boolean drawSuffices) {
+    this.attacker = toMove;
+    this.drawSuffices = drawSuffices;
+    this.questionKey = QUESTION_KEYS[2 * toMove.ordinal() + (drawSuffices? 1 : 0)];
+
+    search(grid, toMove, INFINITY, INFINITY);
+    return phi(key(grid, toMove)) == 0;
+  }
+
+  /**
+   * Expands the position on <code>grid</code>, with <code>colour</code> to
+   * move, until it is settled or its proof or disproof number reaches the
+   * given threshold, and records the result in the table.
+   */
+  private void search(
+      final ConnectFourGrid grid,
+      final Colour colour,
+      final int phiThreshold,
+      final int deltaThreshold) {
+    if (++nodes > nodeLimit) throw ABORT;
+    final long key = key(grid, colour);
+
+    // winning settles the question either way, and a draw settles it for the attacker
+    if (!ColumnSet.isEmpty(AbstractAI.getThreats(grid, colour))) {
+      store(key, 0, INFINITY);
+      return;
+    }
+    if (grid.isFull()) {
+      boolean moverSatisfied = (colour == attacker) == drawSuffices;
+      store(key, moverSatisfied? 0 : INFINITY, moverSatisfied? INFINITY : 0);
+      return;
+    }
+
+    // knowledge may show that the mover cannot get what it needs
+    if (grid.getRows() * grid.getColumns() - grid.getMoveCount() >= KNOWLEDGE_CELLS) {
+      Outcome bound = knowledge.upperBound(grid, colour);
+      boolean needsWin = (colour == attacker) != drawSuffices;
+      if (bound == Outcome.Loss || (bound == Outcome.Draw && needsWin)) {
+        store(key, INFINITY, 0);
+        return;
+      }
+    }
+
+    // an opposing threat must be blocked; with two, every move loses
+    int moves = AbstractAI.getThreats(grid, colour.opposite());
+    if (ColumnSet.isEmpty(moves)) {
+      for (int column = 0; column < grid.getColumns(); column++) {
+        if (grid.getNextRow(column) != -1) moves = ColumnSet.with(moves, column);
+      }
+    }
+    final int[] children = new int[ColumnSet.size(moves)];
+    final long[] childKeys = new long[children.length];
+    int count = 0;
+    for (int column : order) {
+      if (!ColumnSet.contains(moves, column)) continue;
+      grid.addPiece(colour, column);
+      childKeys[count] = key(grid, colour.opposite());
+      grid.undoMove();
+      children[count++] = column;
+    }
+
+    while (true) {
+      // a move settles the question for the mover if it settles it against the opponent
+      int phi = INFINITY;
+      int delta = 0;
+      int best = -1;
+      int bestDelta = INFINITY;
+      int secondDelta = INFINITY;
+      for (int i = 0; i < count; i++) {
+        int childPhi = phi(childKeys[i]);
+        int childDelta = delta(childKeys[i]);
+        phi = Math.min(phi, childDelta);
+        delta = Math.min(delta + childPhi, INFINITY);
+        if (childDelta < bestDelta) {
+          secondDelta = bestDelta;
+          bestDelta = childDelta;
+          best = i;
+        } else if (childDelta < secondDelta) {
+          secondDelta = childDelta;
+        }
+      }
+
+      if (phi >= phiThreshold || delta >= deltaThreshold) {
+        store(key, phi, delta);
+        return;
+      }
+
+      // expand the most promising move, until it is no longer so
+      int childPhi = phi(childKeys[best]);
+      int childPhiThreshold = Math.min(deltaThreshold - delta + childPhi, INFINITY);
+      int childDeltaThreshold = Math.min(phiThreshold, secondDelta + 1);
+      grid.addPiece(colour, children[best]);
+      try {
+        search(grid, colour.opposite(), childPhiThreshold, childDeltaThreshold);
+      } finally {
+        grid.undoMove();
+      }
+    }
+  }
+
+  /** @return The table key of <code>grid</code> with <code>toMove</code> to play, in the current question. */
+  private long key(final ConnectFourGrid grid, final Colour toMove) {
+    return TranspositionTable.key(grid, toMove) ^ questionKey;
+  }
+
+  /** @return The proof number stored for <code>key</code>, or 1 if there is none. */
+  private int phi(final long key) {
+    int index = index(key);
+    return (keys[index] == key && deltas[index] + phis[index] != 0)? phis[index] : 1;
+  }
+
+  /** @return The disproof number stored for <code>key</code>, or 1 if there is none. */
+  private int delta(final long key) {
+    int index = index(key);
+    return (keys[index] == key && deltas[index] + phis[index] != 0)? deltas[index] : 1;
+  }
+
+  private void store(final long key, final int phi, final int delta) {
+    int index = index(key);
+    keys[index] = key;
+    phis[index] = phi;
+    deltas[index] = delta;
+  }
+
+  private int index(final long key) {
+    return (int) (key ^ (key >>> 32)) & mask;
+  }
+}
@@ -0,0 +1,560 @@
+package id.thrawnca.connect4;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.SearchTrace.Event;
+
+/**
+ * Chooses columns by searching the game tree to a fixed depth, using
+ * negamax with alpha-beta pruning, and scoring the positions at the end of
+ * the search with a static evaluation.
+ *
+ *<p>Columns are searched centre-first, since central moves take part in
+ * the most lines and so are most often best; this lets alpha-beta prune
+ * the remaining columns sooner.
+ *
+ *<p>Scores are from the point of view of the colour to move. A win scores
+ * more than any evaluation, and a sooner win scores more than a later one,
+ * so the AI takes the quickest win available and delays any loss it cannot
+ * avoid. Where several columns score equally, one is chosen at random.
+ *
+ *<p>Results are cached in a <code>TranspositionTable</code>, which is kept
+ * between moves; positions reached again, by transposition or on a later
+ * turn, are then looked up rather than searched, and their best moves are
+ * tried first.
+ *
+ *<p>Given a time budget, the AI instead deepens its search one move at a
+ * time, and plays the best column from the deepest search completed when
+ * the time runs out.
+ *
+ *<p>The search can be spread over several threads; see
+ * <code>setThreads</code>.
+ *
+ *<p>For hints and analysis, <code>analyse</code> scores every column
+ * exactly in the same search, rather than only telling the best columns
+ * from the rest.
+ *
+ * @author Carl Antuar
+ */
+public final class SearchAI extends AbstractAI {
+
+  /** The search depth used if none is specified. */
+  public static final int DEFAULT_DEPTH = 8;
+
+  /** The size of the transposition table created for each SearchAI, in MB. */
+  public static final int DEFAULT_TABLE_SIZE = 8;
+
+  /**
+   * The score of a win with no cells left to spare; wins with more empty
+   * cells remaining score higher still.
+   */
+  static final int WIN = 1000000;
+
+  /** Bounds outside any possible score. */
+  static final int INFINITY = 2 * WIN;
+
+  /**
+   * Evaluation weight of a line holding 0-4 pieces of one colour and none
+   * of the other. A complete line only occurs if the AI is asked to play on
+   * after a win, so it is given no special weight.
+   */
+  private static final int[] LINE_WEIGHTS = { 0, 1, 4, 32, 32 };
+
+  /** The number of moves ahead to search. */
+  private final int depth;
+
+  /** The columns in the order in which to search them. */
+  private final int[] columnOrder;
+
+  /** How many positions to visit between checks for the end of a search. */
+  private static final int STOP_CHECK_INTERVAL = 1024;
+
+  /** Thrown to abandon a search that has run out of time, or been stopped. */
+  private static final class AbortException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    AbortException() {
+      // thrown often, so skip the stack trace
+      super("Search abandoned", null, false, false);
+    }
+  }
+
+  private static final AbortException ABORT = new AbortException();
+
+  /** The number of threads to search with, including the calling thread. */
+  private int threads = 1;
+
+  /** The pool in which helper threads search. */
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** The number of positions visited by the most recent search. */
+  private long nodes;
+
+  /**
+   * Constructs a new SearchAI choosing moves for <code>aiColour</code> on
+   * <code>grid</code>, searching <code>DEFAULT_DEPTH</code> moves ahead.
+   */
+  public SearchAI(ConnectFourGrid grid, Colour aiColour) {
+    this(grid, aiColour, DEFAULT_DEPTH);
+  }
+
+  /**
+   * Constructs a new SearchAI choosing moves for <code>aiColour</code> on
+   * <code>grid</code>, searching <code>depth</code> moves ahead.
+   */
+  public SearchAI(ConnectFourGrid grid, Colour aiColour, int depth) {
+    super(grid, aiColour);
+    if (depth < 1) {
+      throw new IllegalArgumentException("Search depth must be positive: " + depth);
+    }
+    this.depth = depth;
+    this.columnOrder = centreFirst(grid.getColumns());
+    setTranspositionTable(new TranspositionTable(DEFAULT_TABLE_SIZE));
+  }
+
+  /** @return The number of threads this AI searches with. */
+  public int getThreads() { return threads; }
+
+  /**
+   * Sets the number of threads to search with. The calling thread always
+   * searches; any others are helpers run in this AI's
+   * <code>ForkJoinPool</code>, which share the transposition table but not
+   * their results (Lazy SMP). Helpers search to the same depth, but start
+   * deepening at staggered depths and take the columns in a different
+   * order, so that they fill the table with results the calling thread
+   * will need shortly rather than repeating its work.
+   * @param threads The total number of threads, at least 1.
+   */
+  public void setThreads(final int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Thread count must be positive: " + threads);
+    }
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the pool in which helper threads search. By default this is the
+   * common pool.
+   */
+  public void setPool(final ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Searches each non-full column to this AI's depth, and chooses one of
+   * those with the best score.
+   * @return The index of the chosen column.
+   */
+  public int chooseColumn() {
+    return pick(search(depth, null));
+  }
+
+  /**
+   * Searches one move deeper at a time, from 1 up to the end of the game,
+   * until <code>budget</code> has elapsed, then chooses one of the best
+   * columns found by the deepest search completed. A search to depth 1 is
+   * always completed, however small the budget.
+   * @param budget The time to take.
+   * @return The index of the chosen column.
+   */
+  @Override
+  public int chooseColumn(final Duration budget) {
+    return pick(search(grid.getRows() * grid.getColumns() - grid.getMoveCount(), budget));
+  }
+
+  /**
+   * Searches each non-full column to this AI's depth, as
+   * <code>chooseColumn()</code> does.
+   * @return The <code>ColumnSet</code> of the columns with the best score.
+   */
+  int findBestColumns() {
+    return search(depth, null);
+  }
+
+  /**
+   * Searches each non-full column to this AI's depth, as
+   * <code>chooseColumn()</code> does, but finds the exact score of every
+   * column rather than only which are best.
+   */
+  public Analysis analyse() {
+    return analyse(depth, null);
+  }
+
+  /**
+   * Searches one move deeper at a time, as <code>chooseColumn(budget)</code>
+   * does, and reports the exact score of every column from the deepest
+   * search completed.
+   */
+  public Analysis analyse(final Duration budget) {
+    return analyse(grid.getRows() * grid.getColumns() - grid.getMoveCount(), budget);
+  }
+
+  /** Helper for <code>analyse</code>; see <code>search</code>. */
+  private Analysis analyse(final int maxDepth, final Duration budget) {
+    final Searcher main = new Searcher(grid.clone(), columnOrder);
+    main.exact = true;
+    search(main, maxDepth, budget);
+
+    // a search reaching the end of every line proves draws as well as wins
+    final int emptyCells = grid.getRows() * grid.getColumns() - grid.getMoveCount();
+    final Outcome[] outcomes = new Outcome[grid.getColumns()];
+    int columns = ColumnSet.EMPTY;
+    for (int column = 0; column < grid.getColumns(); column++) {
+      if (grid.getNextRow(column) == -1) continue;
+      columns = ColumnSet.with(columns, column);
+      int score = main.rootScores[column];
+      if (Math.abs(score) >= WIN || main.rootDepth >= emptyCells) outcomes[column] = Outcome.of(score);
+    }
+    return new Analysis(columns, main.rootScores, outcomes, main.rootDepth);
+  }
+
+  /** @return The number of positions visited by the most recent search. */
+  public long getNodes() { return nodes; }
+
+  /**
+   * Searches each of the opponent's replies in turn, one move deeper at a
+   * time, filling the transposition table with the results the next search
+   * will need.
+   */
+  @Override
+  protected void ponder(final ConnectFourGrid position) {
+    if (getTranspositionTable() == null) return;
+    final Searcher searcher = new Searcher(position, columnOrder);
+    final Colour opponent = aiColour.opposite();
+    try {
+      for (int depth = 1; depth < position.getRows() * position.getColumns() - position.getMoveCount(); depth++) {
+        for (int column : columnOrder) {
+          if (position.getNextRow(column) == -1 || position.wouldConnectFour(opponent, column)) continue;
+          position.addPiece(opponent, column);
+          if (!position.isFull()) searcher.searchRoot(depth);
+          position.undoMove();
+          if (isPonderingStopped()) return;
+        }
+      }
+    } catch (CancellationException e) {
+      // stopped; the position is discarded, so need not be restored
+    }
+  }
+
+  /**
+   * Finds the best columns, helped by any extra threads.
+   * @param maxDepth The depth to search to, or if <code>budget</code> is
+   * non-null, the greatest depth to deepen to.
+   * @param budget The time available, or null to search to
+   * <code>maxDepth</code> regardless of time.
+   * @return The <code>ColumnSet</code> of the endgame solver's best
+   * columns if it has solved the position, else of the best columns found
+   * by the deepest search completed.
+   */
+  private int search(final int maxDepth, final Duration budget) {
+    final int solved = solveEndgame(grid);
+    if (solved != ColumnSet.EMPTY) return solved;
+    return search(new Searcher(grid.clone(), columnOrder), maxDepth, budget);
+  }
+
+  /**
+   * As <code>search(maxDepth, budget)</code>, with <code>main</code>
+   * searching on the calling thread.
+   */
+  private int search(final Searcher main, final int maxDepth, final Duration budget) {
+    trace(Event.Start, aiColour, -1);
+
+    // start helpers deepening in the background
+    final Searcher[] helpers = new Searcher[threads - 1];
+    final ForkJoinTask<?>[] helperTasks = new ForkJoinTask<?>[threads - 1];
+    for (int i = 0; i < helpers.length; i++) {
+      final Searcher helper = new Searcher(grid.clone(), rotate(columnOrder, i + 1));
+      final int firstDepth = 1 + (i + 1) % 2;
+      helpers[i] = helper;
+      helperTasks[i] = pool.submit(new Runnable() {
+          public void run() { helper.deepen(firstDepth, maxDepth); }
+        }
+      );
+    }
+
+    try {
+      if (budget == null) {
+        int bestColumns = main.searchRoot(maxDepth);
+        reportProgress(maxDepth, countNodes(main, helpers), ColumnSet.first(bestColumns));
+        return bestColumns;
+      }
+
+      int bestColumns = main.searchRoot(1);
+      reportProgress(1, countNodes(main, helpers), ColumnSet.first(bestColumns));
+      main.deadline = System.nanoTime() + budget.toNanos();
+      main.timed = true;
+      try {
+        // a proven result will not change with further depth
+        for (int depth = 2; depth <= maxDepth && Math.abs(main.rootScore) < WIN; depth++) {
+          bestColumns = main.searchRoot(depth);
+          reportProgress(depth, countNodes(main, helpers), ColumnSet.first(bestColumns));
+        }
+      } catch (AbortException e) {
+        // out of time; keep the result of the last complete search
+      }
+      return bestColumns;
+    } finally {
+      long total = main.nodes;
+      for (int i = 0; i < helpers.length; i++) {
+        helpers[i].stopped = true;
+        helperTasks[i].quietlyJoin();
+        total += helpers[i].nodes;
+      }
+      nodes = total;
+    }
+  }
+
+  /**
+   * @return The number of positions visited so far by <code>main</code>
+   * and its <code>helpers</code>; approximate while the helpers are running.
+   */
+  private static long countNodes(final Searcher main, final Searcher[] helpers) {
+    long total = main.nodes;
+    for (Searcher helper : helpers) total += helper.nodes;
+    return total;
+  }
+
+  /**
+   * The state of one thread's search: its own copy of the grid, and its
+   * own count of positions and means of stopping.
+   */
+  private final class Searcher {
+
+    private final ConnectFourGrid grid;
+
+    /** The columns in the order in which to search them. */
+    private final int[] order;
+
+    /** The number of positions visited. */
+    private long nodes;
+
+    /** Whether this search has a deadline. */
+    private boolean timed;
+
+    /** The <code>System.nanoTime</code> at which this search must stop. */
+    private long deadline;
+
+    /** Set by another thread to stop this search. */
+    private volatile boolean stopped;
+
+    /** Whether root searches find the exact score of every column, not just the best. */
+    private boolean exact;
+
+    /** The score of the column chosen by the most recent root search. */
+    private int rootScore;
+
+    /**
+     * The score of each column in the most recent complete root search, if
+     * <code>exact</code>; otherwise null.
+     */
+    private int[] rootScores;
+
+    /** The depth of the most recent complete root search. */
+    private int rootDepth;
+
+    Searcher(final ConnectFourGrid grid, final int[] order) {
+      this.grid = grid;
+      this.order = order;
+    }
+
+    /**
+     * Searches from <code>firstDepth</code> to <code>maxDepth</code>, one
+     * move deeper at a time, until stopped. Used by helper threads, whose
+     * results are shared only through the transposition table.
+     */
+    void deepen(final int firstDepth, final int maxDepth) {
+      try {
+        for (int depth = firstDepth; depth <= maxDepth && !stopped; depth++) {
+          searchRoot(depth);
+        }
+      } catch (AbortException e) {
+        // stopped by the main search
+      }
+    }
+
+    /**
+     * Scores each non-full column of the grid to <code>depth</code>, and
+     * records the best score in <code>rootScore</code>, and if
+     * <code>exact</code>, every score in <code>rootScores</code>.
+     * @return The <code>ColumnSet</code> of the columns with the best score.
+     */
+    int searchRoot(final int depth) {
+      final int[] scores = exact? new int[grid.getColumns()] : null;
+      int bestScore = -INFINITY;
+      int bestColumns = ColumnSet.EMPTY;
+      for (int column : order) {
+        if (grid.getNextRow(column) == -1) continue;
+
+        // search just wide enough to tell whether this column equals the best, unless all are wanted
+        int score = scoreMove(column, aiColour, depth, exact? -INFINITY : bestScore - 1, INFINITY);
+        if (exact) scores[column] = score;
+        if (score > bestScore) {
+          bestScore = score;
+          bestColumns = ColumnSet.with(ColumnSet.EMPTY, column);
+        } else if (score == bestScore) {
+          bestColumns = ColumnSet.with(bestColumns, column);
+        }
+      }
+      rootScore = bestScore;
+      rootScores = scores;
+      rootDepth = depth;
+      return bestColumns;
+    }
+
+    /**
+     * Scores a move by <code>colour</code> in the non-full
+     * <code>column</code>, from the point of view of <code>colour</code>.
+     */
+    private int scoreMove(
+        final int column,
+        final Colour colour,
+        final int depth,
+        final int alpha,
+        final int beta) {
+      if (grid.wouldConnectFour(colour, column)) {
+        return winScore(grid);
+      }
+      grid.addPiece(colour, column);
+      try {
+        return -negamax(colour.opposite(), depth - 1, -beta, -alpha);
+      } finally {
+        grid.undoMove();
+      }
+    }
+
+    /**
+     * Scores the grid with <code>colour</code> to move, searching
+     * <code>depth</code> moves ahead.
+     * @return The score, if it lies between <code>alpha</code> and
+     * <code>beta</code>; otherwise a bound beyond whichever of them it
+     * exceeds.
+     */
+    private int negamax(
+        final Colour colour,
+        final int depth,
+        int alpha,
+        final int beta) {
+      if (++nodes % STOP_CHECK_INTERVAL == 0) {
+        checkCancelled();
+        if (stopped || timed && System.nanoTime() - deadline > 0) {
+          throw ABORT;
+        }
+      }
+
+      // an immediate win needs no further search
+      for (int column = 0; column < grid.getColumns(); column++) {
+        if (grid.wouldConnectFour(colour, column)) return winScore(grid);
+      }
+      if (grid.isFull()) return 0;
+      if (depth == 0) return evaluate(grid, colour);
+
+      // look for a usable result from an earlier search
+      final TranspositionTable table = getTranspositionTable();
+      final long key = TranspositionTable.key(grid, colour);
+      int firstColumn = -1;
+      if (table != null) {
+        long entry = table.probe(key);
+        if (entry != 0) {
+          firstColumn = TranspositionTable.move(entry);
+          if (TranspositionTable.depth(entry) >= depth) {
+            int score = TranspositionTable.score(entry);
+            switch (TranspositionTable.bound(entry)) {
+              case TranspositionTable.EXACT: return score;
+              case TranspositionTable.LOWER: if (score >= beta) return score; break;
+              case TranspositionTable.UPPER: if (score <= alpha) return score; break;
+            }
+          }
+        }
+      }
+
+      final int originalAlpha = alpha;
+      int best = -INFINITY;
+      int bestColumn = -1;
+      // try the previous best move first, then the rest in order
+      for (int i = -1; i < order.length; i++) {
+        int column = (i == -1)? firstColumn : order[i];
+        if (column == -1 || (i >= 0 && column == firstColumn)) continue;
+        if (grid.getNextRow(column) == -1) continue;
+
+        int score;
+        grid.addPiece(colour, column);
+        try {
+          score = -negamax(colour.opposite(), depth - 1, -beta, -alpha);
+        } finally {
+          grid.undoMove();
+        }
+
+        if (score > best) {
+          best = score;
+          bestColumn = column;
+          if (score > alpha) {
+            alpha = score;
+            if (alpha >= beta) break;  // opponent will avoid this line
+          }
+        }
+      }
+
+      if (table != null) {
+        int bound = (best <= originalAlpha)? TranspositionTable.UPPER
+            : (best >= beta)? TranspositionTable.LOWER : TranspositionTable.EXACT;
+        table.store(key, depth, best, bound, bestColumn);
+      }
+      return best;
+    }
+  }
+
+  /**
+   * @return The score for the colour to move winning on its next move in
+   * <code>grid</code>.
+   */
+  static int winScore(final ConnectFourGrid grid) {
+    int cells = grid.getRows() * grid.getColumns();
+    return WIN + cells - grid.getMoveCount();
+  }
+
+  /**
+   * Statically evaluates <code>grid</code> for <code>colour</code>, by
+   * weighing the lines still open to each colour according to how many of
+   * their pieces each holds.
+   */
+  static int evaluate(final ConnectFourGrid grid, final Colour colour) {
+    long mine = grid.getPieces(colour);
+    long theirs = grid.getPieces(colour.opposite());
+
+    int score = 0;
+    for (long line : grid.getWinLines()) {
+      if ((line & theirs) == 0) {
+        score += LINE_WEIGHTS[Long.bitCount(line & mine)];
+      } else if ((line & mine) == 0) {
+        score -= LINE_WEIGHTS[Long.bitCount(line & theirs)];
+      }
+    }
+    return score;
+  }
+
+  /** @return The columns of a grid, ordered from the centre outwards. */
+  static int[] centreFirst(final int columns) {
+    int[] order = new int[columns];
+    int count = 0;
+    // measure distances in half-columns, so that the centre is a whole number
+    for (int distance = 0; count < columns; distance++) {
+      for (int column = 0; column < columns; column++) {
+        if (Math.abs(2 * column - (columns - 1)) == distance) order[count++] = column;
+      }
+    }
+    return order;
+  }
+
+  /** @return <code>order</code>, rotated left by <code>distance</code> places. */
+  private static int[] rotate(final int[] order, final int distance) {
+    int[] rotated = new int[order.length];
+    for (int i = 0; i < order.length; i++) {
+      rotated[i] = order[(i + distance) % order.length];
+    }
+    return rotated;
+  }
+}
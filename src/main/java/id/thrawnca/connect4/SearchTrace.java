@@ -0,0 +1,201 @@
+package id.thrawnca.connect4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * An asynchronous sink for AI search-trace events.
+ *
+ *<p>Events are recorded as small structured entries rather than messages,
+ * so recording one costs a queue insertion; formatting and writing happen on
+ * a background thread, which flushes whenever it catches up. If the queue is
+ * full, events are dropped rather than slowing down the search, and the
+ * number dropped is reported when the sink is closed.
+ *
+ *<p>Each event is written as a line of space-separated <code>key=value</code>
+ * pairs, eg
+ *<pre>
+ *  t=1234567 thread=main ai=Black event=Threat colour=White column=3
+ *</pre>
+ *
+ * @author Carl Antuar
+ */
+final class SearchTrace implements Closeable {
+
+  /** The kinds of event that an AI can record while searching. */
+  public enum Event {
+    /** The AI has begun choosing a column. */
+    Start,
+    /** A column in which a colour could win immediately. */
+    Threat,
+    /** A column that would give a colour an n-way. */
+    NWay,
+    /** The AI has begun searching for consequentials. */
+    ConsequentialSearch,
+    /** A column giving a consequential win through an immediate threat. */
+    Consequential,
+    /** A column whose threat, once blocked, allows a further win. */
+    ConsequentialBlock,
+    /** A column that would give a colour a setup. */
+    Setup,
+    /** An opposing win that cannot be prevented by blocking the column. */
+    Unblockable,
+    /** The AI is checking whether playing in a column is unwise. */
+    BadColumnCheck,
+    /** A column that would allow an opposing win. */
+    AllowsWin,
+    /** A column that would allow an opposing n-way, consequential or setup. */
+    AllowsForcedWin,
+    /** The AI has solved the endgame exactly; the column is one achieving the best outcome. */
+    Endgame
+  }
+
+  /** Lazily creates the standard sink, so that no thread is started unless tracing is used. */
+  private static final class StandardOut {
+    private static final SearchTrace INSTANCE = new SearchTrace(
+        new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+
+    static {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+          public void run() { INSTANCE.close(); }
+        }
+      );
+    }
+  }
+
+  /** Marks the end of the queue when the sink is closed. */
+  private static final Entry END = new Entry(null, null, null, -1);
+
+  private final Writer out;
+
+  private final BlockingQueue<Entry> queue;
+
+  private final Thread writerThread;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile boolean closed;
+
+  /**
+   * Constructs a new sink writing to <code>out</code>, buffering up to
+   * <code>capacity</code> unwritten events.
+   */
+  SearchTrace(final Writer out, final int capacity) {
+    this.out = out;
+    this.queue = new LinkedBlockingQueue<Entry>(capacity);
+    this.writerThread = new Thread("connect4-search-trace") {
+        public void run() { drain(); }
+      };
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /** @return The shared sink writing to standard output. */
+  static SearchTrace standardOut() {
+    return StandardOut.INSTANCE;
+  }
+
+  /**
+   * Queues an event for writing.
+   * @param ai The colour of the AI recording the event, or null if it was
+   * found by a helper not tied to an AI.
+   * @param colour The colour the event concerns.
+   * @param column The column the event concerns, or -1 if none.
+   */
+  void record(final Colour ai, final Event event, final Colour colour, final int column) {
+    if (closed || !queue.offer(new Entry(ai, event, colour, column))) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Writes all queued events, then stops the background thread.
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      queue.put(END);
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** The body of the background thread. */
+  private void drain() {
+    try {
+      while (true) {
+        // block until there is something to write
+        Entry entry = queue.take();
+        do {
+          if (entry == END) {
+            if (dropped.get() > 0) {
+              out.write("dropped=" + dropped.get() + System.lineSeparator());
+            }
+            out.flush();
+            return;
+          }
+          write(entry);
+        } while ((entry = queue.poll()) != null);
+
+        // caught up; make the output visible
+        out.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      // nowhere to report trace failures; stop accepting events
+      closed = true;
+      queue.clear();
+    }
+  }
+
+  private void write(final Entry entry) throws IOException {
+    out.write("t=");
+    out.write(Long.toString(entry.nanoTime));
+    out.write(" thread=");
+    out.write(entry.thread);
+    if (entry.ai != null) {
+      out.write(" ai=");
+      out.write(entry.ai.toString());
+    }
+    out.write(" event=");
+    out.write(entry.event.toString());
+    if (entry.colour != null) {
+      out.write(" colour=");
+      out.write(entry.colour.toString());
+    }
+    if (entry.column != -1) {
+      out.write(" column=");
+      out.write(Integer.toString(entry.column));
+    }
+    out.write(System.lineSeparator());
+  }
+
+  /** A recorded event, awaiting writing. */
+  private static final class Entry {
+    private final long nanoTime = System.nanoTime();
+    private final String thread = Thread.currentThread().getName();
+    private final Colour ai;
+    private final Event event;
+    private final Colour colour;
+    private final int column;
+
+    Entry(final Colour ai, final Event event, final Colour colour, final int column) {
+      this.ai = ai;
+      this.event = event;
+      this.colour = colour;
+      this.column = column;
+    }
+  }
+}
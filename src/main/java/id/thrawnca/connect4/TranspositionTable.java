@@ -0,0 +1,240 @@
+package id.thrawnca.connect4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+
+/**
+ * A fixed-size cache of search results, keyed on position hash.
+ *
+ *<p>The table is open-addressed: a key selects a 64-byte bucket of four
+ * entries, with no chaining, so its memory use never grows beyond the size
+ * it is created with, and a probe touches a single cache line where the
+ * bucket is so aligned. The first entry of each bucket is depth-preferred,
+ * replaced only by a search at least as deep, so that expensive results
+ * survive; one of the other three, chosen by key, is always replaced, so
+ * that recent results are kept too.
+ *
+ *<p>Tables created by <code>offHeap</code> keep their entries in direct
+ * buffers outside the Java heap, so that very large tables add nothing to
+ * garbage collection; the memory is released when the table is collected.
+ *
+ *<p>The table may be shared by searches on several threads without
+ * locking. Each entry's key is stored XORed with its data, so an entry
+ * half-written by one thread while another reads it fails the key check,
+ * and is treated as a miss rather than returning corrupt data.
+ *
+ *<p>To avoid allocating, entries are returned by <code>probe</code> as
+ * packed <code>long</code>s, which the static accessors unpack. Zero means
+ * no entry was found.
+ *
+ * @author Carl Antuar
+ */
+public final class TranspositionTable {
+
+  /** Bound type of a score that is exact. */
+  public static final int EXACT = 1;
+
+  /** Bound type of a score that is at least the true score (a fail-high). */
+  public static final int LOWER = 2;
+
+  /** Bound type of a score that is at most the true score (a fail-low). */
+  public static final int UPPER = 3;
+
+  /** Hash key component distinguishing positions with Black to move. */
+  private static final long BLACK_TO_MOVE = 0x5a0b1e6d3c4f7e29L;
+
+  /**
+   * Multiplied by the grid size to give a key component distinguishing
+   * grids of different sizes, whose pieces share bitboard bits and so
+   * Zobrist keys.
+   */
+  private static final long GRID_SIZE_KEY = 0x9e3779b97f4a7c15L;
+
+  /** Longs per entry: the key XORed with the data, then the packed data. */
+  private static final int ENTRY_LONGS = 2;
+
+  /** Entries per bucket: a depth-preferred entry, then always-replace ones. */
+  private static final int BUCKET_ENTRIES = 4;
+
+  private static final int BUCKET_LONGS = BUCKET_ENTRIES * ENTRY_LONGS;
+
+  private static final int BYTES_PER_BUCKET = BUCKET_LONGS * Long.BYTES;
+
+  /*
+   * Data layout, from the least significant bit: 2 bits bound type, 8 bits
+   * depth, 6 bits best move + 1 (so 0 means none), then 32 bits score.
+   */
+  private static final int DEPTH_SHIFT = 2;
+  private static final int MOVE_SHIFT = 10;
+  private static final int SCORE_SHIFT = 16;
+
+  /** Log2 of the longs in each off-heap segment: 1GB, within a buffer's int capacity. */
+  private static final int SEGMENT_SHIFT = 27;
+
+  private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+  /** The entries, if kept on the heap; otherwise null. */
+  private final long[] table;
+
+  /** The entries, if kept off the heap, in segments of equal size; otherwise null. */
+  private final LongBuffer[] segments;
+
+  /** Mask selecting a bucket index from a key. */
+  private final int bucketMask;
+
+  /**
+   * Constructs a new table occupying at most <code>megabytes</code> MB of
+   * heap. The number of buckets is rounded down to a power of two.
+   */
+  public TranspositionTable(int megabytes) {
+    this(megabytes, false);
+  }
+
+  private TranspositionTable(final int megabytes, final boolean offHeap) {
+    if (megabytes < 1 || megabytes > 8192) {
+      throw new IllegalArgumentException("Unsupported table size: " + megabytes + "MB");
+    }
+    long buckets = Long.highestOneBit(((long) megabytes << 20) / BYTES_PER_BUCKET);
+    // arrays are limited to int indices
+    buckets = Math.min(buckets, Integer.highestOneBit(Integer.MAX_VALUE / BUCKET_LONGS));
+    long longs = buckets * BUCKET_LONGS;
+    this.bucketMask = (int) buckets - 1;
+    if (offHeap) {
+      this.table = null;
+      this.segments = new LongBuffer[(int) ((longs + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+      for (int i = 0; i < segments.length; i++) {
+        int segmentLongs = (int) Math.min(longs - ((long) i << SEGMENT_SHIFT), 1 << SEGMENT_SHIFT);
+        segments[i] = ByteBuffer.allocateDirect(segmentLongs * Long.BYTES)
+            .order(ByteOrder.nativeOrder()).asLongBuffer();
+      }
+    } else {
+      this.table = new long[(int) longs];
+      this.segments = null;
+    }
+  }
+
+  /**
+   * @return A new table occupying at most <code>megabytes</code> MB outside
+   * the heap, which is otherwise the same as one created by the constructor.
+   * Direct memory is limited by <code>-XX:MaxDirectMemorySize</code>, which
+   * defaults to the maximum heap size, so multi-GB tables may need it raised.
+   */
+  public static TranspositionTable offHeap(final int megabytes) {
+    return new TranspositionTable(megabytes, true);
+  }
+
+  /** @return Whether this table keeps its entries outside the heap. */
+  public boolean isOffHeap() {
+    return segments != null;
+  }
+
+  /**
+   * @return The key under which to store results for <code>grid</code> with
+   * <code>toMove</code> to play. Keys differ between grid sizes, so one
+   * table can serve searches on grids of several sizes.
+   */
+  public static long key(final ConnectFourGrid grid, final Colour toMove) {
+    long key = grid.hashKey() ^ (grid.getRows() * 64L + grid.getColumns()) * GRID_SIZE_KEY;
+    return (toMove == Colour.Black)? key ^ BLACK_TO_MOVE : key;
+  }
+
+  /**
+   * @return The packed entry stored under <code>key</code>, or 0 if there is
+   * none.
+   */
+  public long probe(final long key) {
+    int bucket = bucketIndex(key);
+    for (int i = bucket; i < bucket + BUCKET_LONGS; i += ENTRY_LONGS) {
+      long data = get(i + 1);
+      if (data != 0 && (get(i) ^ data) == key) return data;
+    }
+    return 0;
+  }
+
+  /**
+   * Records a search result.
+   * @param depth The remaining depth to which the position was searched.
+   * @param bound <code>EXACT</code>, <code>LOWER</code> or <code>UPPER</code>.
+   * @param move The best column found, or -1 if none.
+   */
+  public void store(final long key, final int depth, final int score, final int bound, final int move) {
+    long data = pack(depth, score, bound, move);
+    int bucket = bucketIndex(key);
+
+    // keep the deeper result in the depth-preferred entry
+    long preferred = get(bucket + 1);
+    int slot;
+    if (preferred == 0 || (get(bucket) ^ preferred) == key || depth >= depth(preferred)) {
+      slot = bucket;
+    } else {
+      // spread other results over the rest of the bucket by their top bits
+      slot = bucket + ENTRY_LONGS * (1 + (int) ((key >>> 48) % (BUCKET_ENTRIES - 1)));
+    }
+    put(slot, key ^ data);
+    put(slot + 1, data);
+  }
+
+  /** Removes all entries. */
+  public void clear() {
+    if (table != null) {
+      Arrays.fill(table, 0);
+      return;
+    }
+    for (LongBuffer segment : segments) {
+      for (int i = 0; i < segment.capacity(); i++) segment.put(i, 0);
+    }
+  }
+
+  /** @return The size of the table in bytes. */
+  public long getSize() {
+    return (long) (bucketMask + 1) * BYTES_PER_BUCKET;
+  }
+
+  public static int score(final long entry) {
+    return (int) (entry >> SCORE_SHIFT);
+  }
+
+  public static int depth(final long entry) {
+    return (int) (entry >>> DEPTH_SHIFT) & 0xff;
+  }
+
+  public static int bound(final long entry) {
+    return (int) entry & 0x3;
+  }
+
+  /** @return The best column stored in <code>entry</code>, or -1 if none. */
+  public static int move(final long entry) {
+    return ((int) (entry >>> MOVE_SHIFT) & 0x3f) - 1;
+  }
+
+  private static long pack(final int depth, final int score, final int bound, final int move) {
+    if (bound < EXACT || bound > UPPER) {
+      throw new IllegalArgumentException("Unknown bound type: " + bound);
+    }
+    return ((long) score << SCORE_SHIFT)
+        | ((long) (move + 1) << MOVE_SHIFT)
+        | ((long) Math.min(depth, 0xff) << DEPTH_SHIFT)
+        | bound;
+  }
+
+  private long get(final int index) {
+    return (table != null)? table[index]
+        : segments[index >>> SEGMENT_SHIFT].get(index & SEGMENT_MASK);
+  }
+
+  private void put(final int index, final long value) {
+    if (table != null) {
+      table[index] = value;
+    } else {
+      segments[index >>> SEGMENT_SHIFT].put(index & SEGMENT_MASK, value);
+    }
+  }
+
+  private int bucketIndex(final long key) {
+    return ((int) (key ^ (key >>> 32)) & bucketMask) * BUCKET_LONGS;
+  }
+}
@@ -1,5 +1,8 @@
 package id.thrawnca.connect4;
 
+import java.util.Random;
+import java.util.SplittableRandom;
+
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
@@ -127,4 +130,75 @@ public abstract class AbstractAITest {
 
     assertColumnAvoidance(3);
   }
+
+  @Test
+  public void shouldRepeatChoicesWithSameSeed() {
+    int[] choices = new int[RETRIES];
+    ai.setRandom(new SplittableRandom(25));
+    for (int i = 0; i < RETRIES; i++) choices[i] = ai.chooseColumn();
+
+    ai.setRandom(new SplittableRandom(25));
+    for (int i = 0; i < RETRIES; i++) assertEquals(ai.chooseColumn(), choices[i]);
+  }
+
+  @Test
+  public void shouldNotDrawRandomWhilePondering() throws InterruptedException {
+    int[] choices = new int[RETRIES];
+    ai.setRandom(new SplittableRandom(25));
+    for (int i = 0; i < RETRIES; i++) choices[i] = ai.chooseColumn();
+
+    ai.setRandom(new SplittableRandom(25));
+    ai.startPondering();
+    Thread.sleep(50);
+    ai.stopPondering();
+    for (int i = 0; i < RETRIES; i++) assertEquals(ai.chooseColumn(), choices[i]);
+  }
+
+  @Test
+  public void shouldPonderWithoutDisturbingGrid() throws InterruptedException {
+    grid.addPiece(White, 0);
+    grid.addPiece(Black, 3);
+    grid.addPiece(White, 0);
+    grid.addPiece(Black, 5);
+
+    ai.startPondering();
+    assertTrue(ai.isPondering());
+    Thread.sleep(100);
+    ai.stopPondering();
+    assertFalse(ai.isPondering());
+    assertEquals(grid.getMoveCount(), 4);
+
+    grid.addPiece(White, 0);
+    assertColumnChoice(0);
+  }
+
+  @Test
+  public void shouldPlaySolvedEndgamePerfectly() {
+    // fill the grid in Black's turn, without ending the game
+    Random random = new Random(16);
+    ConnectFourGrid.Colour colour = White;
+    while (grid.getRows() * grid.getColumns() - grid.getMoveCount() > 12) {
+      int column = random.nextInt(grid.getColumns());
+      if (grid.getNextRow(column) == -1 || grid.wouldConnectFour(colour, column)) continue;
+      grid.addPiece(colour, column);
+      colour = colour.opposite();
+    }
+    if (colour == White) grid.undoMove();
+    ai.setEndgameSolver(new EndgameSolver(), MaxAI.DEFAULT_ENDGAME_CELLS);
+
+    int best = new EndgameSolver().bestColumns(grid, Black);
+    for (int i = 0; i < RETRIES; i++) {
+      assertTrue(ColumnSet.contains(best, ai.chooseColumn()));
+    }
+  }
+
+  @Test
+  public void shouldChooseColumnInBackground() throws Exception {
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+
+    assertEquals(ai.chooseColumnAsync(null).get().intValue(), 0);
+    assertEquals(grid.getMoveCount(), 3);
+  }
 }
@@ -0,0 +1,76 @@
+package id.thrawnca.connect4;
+
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+public class AnalysisCacheTest {
+
+  @Test
+  public void shouldReturnStoredResults() {
+    AnalysisCache cache = new AnalysisCache(1);
+    cache.put(42L, ColumnSet.with(ColumnSet.EMPTY, 31));
+
+    assertEquals(cache.get(42L), 1L << 31);
+    assertEquals(cache.get(43L), AnalysisCache.MISS);
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 1);
+  }
+
+  @Test
+  public void shouldEvictEntriesUnusedSinceLastSweep() {
+    AnalysisCache cache = new AnalysisCache(1);
+    // these keys all fall in bucket 0
+    long[] keys = { 1L << 32 | 1, 2L << 32 | 2, 3L << 32 | 3, 4L << 32 | 4 };
+    for (int i = 0; i < keys.length; i++) {
+      cache.put(keys[i], i);
+    }
+    // use all but the third entry
+    cache.get(keys[0]);
+    cache.get(keys[1]);
+    cache.get(keys[3]);
+
+    cache.put(5L << 32 | 5, 5);
+
+    assertEquals(cache.get(keys[2]), AnalysisCache.MISS);
+    assertEquals(cache.get(keys[0]), 0);
+    assertEquals(cache.get(keys[1]), 1);
+    assertEquals(cache.get(keys[3]), 3);
+    assertEquals(cache.get(5L << 32 | 5), 5);
+  }
+
+  @Test
+  public void shouldDistinguishKindsOfAnalysis() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    long nWays = AnalysisCache.key(grid, AnalysisCache.NWAYS, Black);
+
+    assertNotEquals(AnalysisCache.key(grid, AnalysisCache.UNBLOCKABLE_NWAYS, Black), nWays);
+    assertNotEquals(AnalysisCache.key(grid, AnalysisCache.CONSEQUENTIALS, Black), nWays);
+    assertNotEquals(AnalysisCache.key(grid, AnalysisCache.NWAYS, White), nWays);
+  }
+
+  @Test
+  public void shouldDistinguishGridSizes() {
+    // the same piece is on the same bitboard bit of both grids
+    ConnectFourGrid narrow = new ConnectFourGrid(4, 4);
+    ConnectFourGrid wide = new ConnectFourGrid(4, 5);
+    narrow.addPiece(Black, 0);
+    wide.addPiece(Black, 0);
+
+    assertNotEquals(AnalysisCache.key(narrow, AnalysisCache.NWAYS, Black),
+        AnalysisCache.key(wide, AnalysisCache.NWAYS, Black));
+  }
+
+  @Test
+  public void shouldClearEntriesAndCounters() {
+    AnalysisCache cache = new AnalysisCache(1);
+    cache.put(42L, 3);
+    cache.get(42L);
+    cache.clear();
+
+    assertEquals(cache.getHits(), 0);
+    assertEquals(cache.get(42L), AnalysisCache.MISS);
+  }
+
+}
@@ -0,0 +1,53 @@
+package id.thrawnca.connect4;
+
+import java.util.SplittableRandom;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class ColumnSetTest {
+
+  @Test
+  public void shouldTrackMembers() {
+    int set = ColumnSet.with(ColumnSet.with(ColumnSet.EMPTY, 4), 1);
+
+    assertFalse(ColumnSet.isEmpty(set));
+    assertEquals(ColumnSet.size(set), 2);
+    assertTrue(ColumnSet.contains(set, 1));
+    assertTrue(ColumnSet.contains(set, 4));
+    assertFalse(ColumnSet.contains(set, 0));
+    assertEquals(ColumnSet.toString(set), "[1, 4]");
+  }
+
+  @Test
+  public void shouldIterateInAscendingOrder() {
+    int set = ColumnSet.with(ColumnSet.with(ColumnSet.with(ColumnSet.EMPTY, 31), 6), 0);
+
+    assertEquals(ColumnSet.first(set), 0);
+    assertEquals(ColumnSet.next(set, 0), 6);
+    assertEquals(ColumnSet.next(set, 6), 31);
+    assertEquals(ColumnSet.next(set, 31), -1);
+    assertEquals(ColumnSet.first(ColumnSet.EMPTY), -1);
+  }
+
+  @Test
+  public void shouldPickOnlyMembers() {
+    int set = ColumnSet.with(ColumnSet.with(ColumnSet.EMPTY, 2), 5);
+
+    SplittableRandom random = new SplittableRandom(25);
+    boolean[] picked = new boolean[7];
+    for (int i = 0; i < 100; i++) {
+      int column = ColumnSet.pick(set, random);
+      assertTrue(ColumnSet.contains(set, column), "Picked non-member " + column);
+      picked[column] = true;
+    }
+    assertTrue(picked[2] && picked[5], "Should pick every member eventually");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectPickFromEmptySet() {
+    ColumnSet.pick(ColumnSet.EMPTY, new SplittableRandom());
+  }
+
+}
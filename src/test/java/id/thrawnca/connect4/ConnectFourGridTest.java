@@ -32,6 +32,40 @@ public class ConnectFourGridTest {
     assertEquals(grid.getColumns(), 7);
   }
 
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectGridTooLargeForBitboard() {
+    new ConnectFourGrid(8, 8);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectGridTooTallForBitboard() {
+    new ConnectFourGrid(9, 7);
+  }
+
+  @Test
+  public void shouldAcceptLargestGridWithSevenColumns() {
+    ConnectFourGrid grid = new ConnectFourGrid(8, 7);
+    assertEquals(grid.getRows(), 8);
+  }
+
+  @Test
+  public void shouldNotWrapConnectFourBetweenColumns() {
+    ConnectFourGrid grid = new ConnectFourGrid(7, 8);
+
+    // top two rows of column 0 and bottom two rows of column 1 are adjacent bits
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 1);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 1);
+
+    assertEquals(grid.getNextRow(0), -1);
+  }
+
   @Test
   public void shouldRejectCalculationsOutsideGrid() {
     ConnectFourGrid grid = new ConnectFourGrid(1, 4);
@@ -61,6 +95,40 @@ public class ConnectFourGridTest {
     assertFalse(grid.addPiece(ConnectFourGrid.Colour.Black, 0));
   }
 
+  @Test
+  public void shouldTrackOpenColumns() {
+    ConnectFourGrid grid = new ConnectFourGrid(2, 3);
+    assertEquals(grid.getOpenColumns(), 0x7);
+
+    grid.addPiece(ConnectFourGrid.Colour.Black, 1);
+    grid.addPiece(ConnectFourGrid.Colour.White, 1);
+    assertEquals(grid.getOpenColumns(), 0x5);
+    assertEquals(grid.clone().getOpenColumns(), 0x5);
+
+    grid.undoMove();
+    assertEquals(grid.getOpenColumns(), 0x7);
+
+    grid.addPiece(ConnectFourGrid.Colour.White, 1);
+    grid.zap();
+    assertEquals(grid.getOpenColumns(), 0x7);
+  }
+
+  @Test
+  public void shouldReportFullGrid() {
+    ConnectFourGrid grid = new ConnectFourGrid(1, 2);
+    assertFalse(grid.isFull());
+
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 0);
+    assertFalse(grid.isFull());
+
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 1);
+    assertTrue(grid.isFull());
+
+    grid.undoMove();
+    assertFalse(grid.isFull());
+    assertEquals(grid.getNextRow(1), 0);
+  }
+
   @Test
   public void shouldDetectVerticalConnectFour() {
     ConnectFourGrid grid = new ConnectFourGrid(6, 7);
@@ -132,6 +200,30 @@ public class ConnectFourGridTest {
     assertSoleConnectFour(grid, 3, 2, 0, 5);
   }
 
+  @Test
+  public void shouldAgreeOnLastMoveConnectFour() {
+    java.util.Random random = new java.util.Random(4);
+    for (int game = 0; game < 200; game++) {
+      ConnectFourGrid grid = new ConnectFourGrid(4 + game % 3, 4 + game % 4);
+      assertFalse(grid.lastMoveConnectsFour());
+
+      ConnectFourGrid.Colour colour = ConnectFourGrid.Colour.Black;
+      while (!grid.isFull()) {
+        int column = random.nextInt(grid.getColumns());
+        int row = grid.getNextRow(column);
+        if (row == -1) continue;
+
+        boolean expected = grid.wouldConnectFour(colour, column);
+        grid.addPiece(colour, column);
+        assertEquals(grid.lastMoveConnectsFour(), expected);
+        assertEquals(grid.connectsFour(row, column), expected);
+        if (expected) break;
+
+        colour = colour.opposite();
+      }
+    }
+  }
+
   @Test
   public void shouldDeepCopyOnClone() {
     ConnectFourGrid grid = new ConnectFourGrid(3, 3);
@@ -163,6 +255,60 @@ public class ConnectFourGridTest {
     assertNull(grid.colourAt(2, 2));
   }
 
+  @Test
+  public void shouldUndoMovesInReverseOrder() {
+    ConnectFourGrid grid = new ConnectFourGrid(3, 3);
+
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 0);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 1);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 0);
+
+    assertEquals(grid.undoMove(), 0);
+    assertNull(grid.colourAt(1, 0));
+    assertEquals(grid.colourAt(0, 0), ConnectFourGrid.Colour.Black);
+    assertEquals(grid.getNextRow(0), 1);
+
+    assertEquals(grid.undoMove(), 1);
+    assertEquals(grid.getNextRow(1), 0);
+
+    assertEquals(grid.undoMove(), 0);
+    assertEquals(grid.getNextRow(0), 0);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void shouldRejectUndoOnEmptyGrid() {
+    ConnectFourGrid grid = new ConnectFourGrid(2, 2);
+
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 0);
+    grid.zap();
+
+    grid.undoMove();
+  }
+
+  @Test
+  public void shouldHashPositionsIndependentlyOfMoveOrder() {
+    ConnectFourGrid grid = new ConnectFourGrid(6, 7);
+    ConnectFourGrid grid2 = new ConnectFourGrid(6, 7);
+    assertEquals(grid.hashKey(), grid2.hashKey());
+
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 3);
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.White, 4);
+    addPieceWithoutConnectFour(grid2, ConnectFourGrid.Colour.White, 4);
+    assertNotEquals(grid.hashKey(), grid2.hashKey());
+    assertNotEquals(grid, grid2);
+
+    addPieceWithoutConnectFour(grid2, ConnectFourGrid.Colour.Black, 3);
+    assertEquals(grid.hashKey(), grid2.hashKey());
+    assertEquals(grid, grid2);
+    assertEquals(grid.hashCode(), grid2.hashCode());
+
+    long key = grid.hashKey();
+    addPieceWithoutConnectFour(grid, ConnectFourGrid.Colour.Black, 3);
+    grid.undoMove();
+    assertEquals(grid.hashKey(), key);
+    assertEquals(grid.clone().hashKey(), key);
+  }
+
   @Test
   public void shouldRemoveAllPieces() {
     ConnectFourGrid grid = new ConnectFourGrid(2, 2);
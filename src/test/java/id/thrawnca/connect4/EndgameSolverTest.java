@@ -0,0 +1,142 @@
+package id.thrawnca.connect4;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+public class EndgameSolverTest {
+
+  @Test
+  public void shouldTakeImmediateWin() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+
+    EndgameSolver solver = new EndgameSolver();
+    assertEquals(solver.bestColumns(grid, White), ColumnSet.with(ColumnSet.EMPTY, 0));
+    assertEquals(solver.solve(grid, White), Outcome.Win);
+  }
+
+  @Test
+  public void shouldSolveEmptySmallGrids() {
+    // with so few cells, neither side can force a line of four
+    assertEquals(new EndgameSolver().solve(new ConnectFourGrid(4, 4), Black), Outcome.Draw);
+  }
+
+  @Test
+  public void shouldAgreeWithExhaustiveMinimax() {
+    Random random = new Random(4);
+    EndgameSolver solver = new EndgameSolver(new TranspositionTable(1));
+    for (int game = 0; game < 100; game++) {
+      ConnectFourGrid grid = new ConnectFourGrid(4, 5);
+      Colour toMove = randomPosition(grid, random, 10);
+      if (grid.isFull()) continue;
+
+      int expected = minimax(grid, toMove);
+      assertEquals(solver.score(grid, toMove), expected);
+      assertEquals(solver.solve(grid, toMove), Outcome.of(expected));
+
+      int best = solver.bestColumns(grid, toMove);
+      for (int column = ColumnSet.first(best); column != -1; column = ColumnSet.next(best, column)) {
+        assertEquals(scoreMove(grid, toMove, column), expected, "Column " + column);
+      }
+    }
+  }
+
+  @Test
+  public void shouldScoreEveryColumnExactly() {
+    Random random = new Random(5);
+    EndgameSolver solver = new EndgameSolver(new TranspositionTable(1));
+    for (int game = 0; game < 50; game++) {
+      ConnectFourGrid grid = new ConnectFourGrid(4, 5);
+      Colour toMove = randomPosition(grid, random, 10);
+      if (grid.isFull()) continue;
+
+      Analysis analysis = solver.analyse(grid, toMove);
+      for (int column = 0; column < grid.getColumns(); column++) {
+        if (grid.getNextRow(column) == -1) {
+          assertFalse(ColumnSet.contains(analysis.getColumns(), column));
+          continue;
+        }
+        int expected = scoreMove(grid, toMove, column);
+        assertEquals(analysis.getScore(column), expected, "Column " + column);
+        assertEquals(analysis.getOutcome(column), Outcome.of(expected), "Column " + column);
+      }
+      assertEquals(analysis.getBestColumns(), solver.bestColumns(grid, toMove));
+    }
+  }
+
+  @Test
+  public void shouldSolveGridsOfSeveralSizes() {
+    TranspositionTable table = new TranspositionTable(1);
+    EndgameSolver solver = new EndgameSolver(table);
+    Random random = new Random(16);
+    int checked = 0;
+    for (int game = 0; game < 200; game++) {
+      // a position on the wider grid, with the same pieces on the same bits as the narrower
+      ConnectFourGrid wide = new ConnectFourGrid(4, 5);
+      ConnectFourGrid narrow = new ConnectFourGrid(4, 4);
+      Colour toMove = Black;
+      for (int i = 0; i < 8; i++) {
+        int column = random.nextInt(4);
+        if (narrow.getNextRow(column) == -1 || narrow.wouldConnectFour(toMove, column)) continue;
+        wide.addPiece(toMove, column);
+        narrow.addPiece(toMove, column);
+        toMove = toMove.opposite();
+      }
+
+      // where the wider grid's best move is off the narrower grid, solve that next
+      solver.score(wide, toMove);
+      long entry = table.probe(TranspositionTable.key(wide, toMove));
+      if (entry == 0 || TranspositionTable.move(entry) != 4) continue;
+      assertEquals(solver.score(narrow, toMove), minimax(narrow, toMove));
+      checked++;
+    }
+    assertTrue(checked > 0, "No position tested a move off the narrower grid");
+  }
+
+  @Test
+  public void shouldReportOutcomesForEachSide() {
+    assertEquals(Outcome.Win.opposite(), Outcome.Loss);
+    assertEquals(Outcome.Draw.opposite(), Outcome.Draw);
+    assertEquals(Outcome.of(-3), Outcome.Loss);
+  }
+
+  /** Plays random moves that do not end the game, returning the colour to move. */
+  static Colour randomPosition(final ConnectFourGrid grid, final Random random, final int moves) {
+    Colour colour = Black;
+    for (int i = 0; i < moves; i++) {
+      int column = random.nextInt(grid.getColumns());
+      if (grid.getNextRow(column) == -1 || grid.wouldConnectFour(colour, column)) continue;
+      grid.addPiece(colour, column);
+      colour = colour.opposite();
+    }
+    return colour;
+  }
+
+  /** Scores every line of play, without pruning or caching. */
+  private static int minimax(final ConnectFourGrid grid, final Colour colour) {
+    if (grid.isFull()) return 0;
+    int best = Integer.MIN_VALUE;
+    for (int column = 0; column < grid.getColumns(); column++) {
+      if (grid.getNextRow(column) != -1) best = Math.max(best, scoreMove(grid, colour, column));
+    }
+    return best;
+  }
+
+  private static int scoreMove(final ConnectFourGrid grid, final Colour colour, final int column) {
+    if (grid.wouldConnectFour(colour, column)) {
+      return grid.getRows() * grid.getColumns() - grid.getMoveCount();
+    }
+    grid.addPiece(colour, column);
+    int score = -minimax(grid, colour.opposite());
+    grid.undoMove();
+    return score;
+  }
+
+}
@@ -0,0 +1,118 @@
+package id.thrawnca.connect4;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+public class KnowledgeSolverTest {
+
+  @Test
+  public void shouldNotRuleOutImmediateWins() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(White, 0);
+    grid.addPiece(Black, 6);
+    grid.addPiece(White, 0);
+    grid.addPiece(Black, 6);
+    grid.addPiece(White, 0);
+    grid.addPiece(Black, 5);
+
+    assertNull(new KnowledgeSolver().upperBound(grid, White));
+  }
+
+  @Test
+  public void shouldNeedEvenEmptyCells() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(White, 3);
+    assertNull(new KnowledgeSolver().upperBound(grid, Black));
+  }
+
+  @Test
+  public void shouldAgreeWithEndgameSolver() {
+    Random random = new Random(20);
+    KnowledgeSolver knowledge = new KnowledgeSolver();
+    EndgameSolver endgame = new EndgameSolver(new TranspositionTable(1));
+    int recognised = 0;
+    for (int game = 0; game < 500; game++) {
+      ConnectFourGrid grid = new ConnectFourGrid();
+      Colour toMove = EndgameSolverTest.randomPosition(grid, random, 30);
+      Outcome bound = knowledge.upperBound(grid, toMove);
+      if (bound == null) continue;
+
+      recognised++;
+      assertTrue(endgame.solve(grid, toMove).compareTo(bound) <= 0, "Outcome should not exceed " + bound);
+    }
+    assertTrue(recognised > 0, "No positions recognised");
+  }
+
+  @Test
+  public void shouldEnforceRulePairs() {
+    assertTrue(canEnforce(KnowledgeSolver.HIGHINVERSE));
+    assertTrue(canEnforce(KnowledgeSolver.BASECLAIM));
+
+    // but not also stop the opponent getting both lowest cells of a highinverse
+    int[][] highinverse = KnowledgeSolver.HIGHINVERSE.pairs;
+    int[][] tooMany = Arrays.copyOf(highinverse, highinverse.length + 1);
+    tooMany[highinverse.length] = new int[] { 0, 0, 1, 0 };
+    assertFalse(canEnforce(new KnowledgeSolver.Rule(new int[] { 3, 3 }, tooMany)));
+  }
+
+  /**
+   * @return Whether the controller, answering every move within
+   * <code>rule</code>'s cells, can stop the opponent getting both cells of
+   * any of its pairs.
+   */
+  private static boolean canEnforce(final KnowledgeSolver.Rule rule) {
+    int[] offsets = new int[rule.heights.length];
+    for (int i = 1; i < offsets.length; i++) offsets[i] = offsets[i - 1] + rule.heights[i - 1];
+    int[] pairs = new int[rule.pairs.length];
+    for (int i = 0; i < pairs.length; i++) {
+      int[] pair = rule.pairs[i];
+      pairs[i] = (1 << (offsets[pair[0]] + pair[1])) | (1 << (offsets[pair[2]] + pair[3]));
+    }
+    return canEnforce(rule, offsets, pairs, 0, 0);
+  }
+
+  /** As <code>canEnforce(rule)</code>, with the opponent to move. */
+  private static boolean canEnforce(
+      final KnowledgeSolver.Rule rule,
+      final int[] offsets,
+      final int[] pairs,
+      final int opponent,
+      final int controller) {
+    for (int column = 0; column < offsets.length; column++) {
+      int cell = nextCell(rule, offsets, opponent | controller, column);
+      if (cell == 0) continue;
+      int taken = opponent | cell;
+      for (int pair : pairs) {
+        if ((taken & pair) == pair) return false;
+      }
+
+      boolean answered = false;
+      for (int reply = 0; reply < offsets.length && !answered; reply++) {
+        int replyCell = nextCell(rule, offsets, taken | controller, reply);
+        answered = replyCell != 0 && canEnforce(rule, offsets, pairs, taken, controller | replyCell);
+      }
+      if (!answered) return false;
+    }
+    return true;
+  }
+
+  /** @return The bit of the lowest empty cell of <code>column</code> of a rule, or 0 if it is full. */
+  private static int nextCell(
+      final KnowledgeSolver.Rule rule,
+      final int[] offsets,
+      final int filled,
+      final int column) {
+    for (int height = 0; height < rule.heights[column]; height++) {
+      int cell = 1 << (offsets[column] + height);
+      if ((filled & cell) == 0) return cell;
+    }
+    return 0;
+  }
+
+}
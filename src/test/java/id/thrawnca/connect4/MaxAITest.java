@@ -1,9 +1,13 @@
 package id.thrawnca.connect4;
 
+import java.time.Duration;
+import java.util.Random;
+
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
 
 /**
  * Verify that the 'max' AI setting can detect opportunities for
@@ -52,4 +56,61 @@ public class MaxAITest extends AbstractAITest {
     assertColumnChoice(4);
   }
 
+  @Test
+  public void shouldAvoidSameBadColumnsInParallel() {
+    ((MaxAI) ai).setParallel(true);
+    mediumAITests();
+    grid.zap();
+    shouldPlayRandomlyByDefault();
+  }
+
+  @Test
+  public void shouldReuseCachedAnalysis() {
+    AnalysisCache cache = ai.getAnalysisCache();
+    shouldDetectAvailableConsequentialWin();
+
+    assertTrue(cache.getHits() > 0, "Repeated analysis should hit the cache");
+  }
+
+  @Test
+  public void shouldChooseSameColumnsWithoutCache() {
+    ai.setAnalysisCache(null);
+    mediumAITests();
+    shouldDetectAvailableConsequentialWin();
+  }
+
+  @Test
+  public void shouldFindShortConsequentialsWithinChainLimit() {
+    ai.setMaxChainDepth(1);
+    shouldDetectAvailableConsequentialWin();
+  }
+
+  @Test
+  public void shouldCompleteShortestChainsWithinAnyBudget() {
+    shouldDetectAvailableConsequentialWin();
+    for (int i = 0; i < RETRIES; i++) {
+      assertEquals(ai.chooseColumn(Duration.ZERO), 4);
+    }
+    assertEquals(ai.getMaxChainDepth(), AbstractAI.UNLIMITED_CHAIN);
+  }
+
+  @Test
+  public void shouldChooseSameColumnsGivenTime() {
+    shouldDetectAvailableConsequentialWin();
+    for (int i = 0; i < RETRIES; i++) {
+      assertEquals(ai.chooseColumn(Duration.ofMinutes(1)), 4);
+    }
+    detectImmediateLosses();
+    assertEquals(ai.chooseColumn(Duration.ofMinutes(1)), 0);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectNonPositiveChainDepth() {
+    ai.setMaxChainDepth(0);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectNegativeEndgameCells() {
+    ai.setEndgameSolver(new EndgameSolver(), -1);
+  }
 }
@@ -0,0 +1,93 @@
+package id.thrawnca.connect4;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+/**
+ * Verify that the Monte Carlo AI finds immediate and forced wins and
+ * losses, given enough games.
+ */
+public class MonteCarloAITest extends AbstractAITest {
+
+  @BeforeMethod
+  public void setUp(){
+    super.setUp();
+    ai = new MonteCarloAI(grid, Black, 5000);
+  }
+
+  /**
+   * The opening move depends on the random games played, but may favour
+   * some columns too strongly for a test of randomness.
+   */
+  @Override
+  @Test
+  public void shouldPlayRandomlyByDefault() {
+    int column = ai.chooseColumn();
+    assertTrue(column >= 0 && column < grid.getColumns());
+  }
+
+  @Test
+  public void easyAITests() {
+    detectImmediateWins();
+    detectImmediateLosses();
+    detectThreatenedNWay();
+  }
+
+  @Test
+  public void shouldFindSameMovesWithHelperThreads() {
+    ((MonteCarloAI) ai).setThreads(4);
+    easyAITests();
+    assertEquals(((MonteCarloAI) ai).getPlayouts(), 5000);
+  }
+
+  @Test
+  public void shouldStopPlayingWhenBudgetExpires() {
+    ((MonteCarloAI) ai).setThreads(2);
+    long start = System.nanoTime();
+    int column = ai.chooseColumn(Duration.ofMillis(200));
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertTrue(column >= 0 && column < grid.getColumns());
+    assertTrue(elapsed < 2000, "Search took " + elapsed + "ms");
+    assertTrue(((MonteCarloAI) ai).getPlayouts() > 0);
+  }
+
+  @Test
+  public void shouldPlayOnSmallGrids() {
+    grid = new ConnectFourGrid(4, 5);
+    ai = new MonteCarloAI(grid, White, 2000);
+    grid.addPiece(White, 1);
+    grid.addPiece(White, 2);
+    grid.addPiece(White, 3);
+    grid.addPiece(Black, 0);
+
+    assertColumnChoice(4);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectNonPositivePlayouts() {
+    new MonteCarloAI(grid, Black, 0);
+  }
+
+  @Test
+  public void shouldReportProgress() throws Exception {
+    final AtomicLong reported = new AtomicLong();
+    int column = ai.chooseColumnAsync(new ProgressListener() {
+        public void progress(final int depth, final long nodes, final int column) {
+          assertTrue(depth > 0);
+          reported.set(nodes);
+        }
+      }
+    ).get();
+
+    assertTrue(column >= 0 && column < grid.getColumns());
+    assertEquals(reported.get(), 5000);
+  }
+}
@@ -0,0 +1,113 @@
+package id.thrawnca.connect4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+public class OpeningBookTest {
+
+  private Path file;
+
+  private OpeningBook book;
+
+  @BeforeClass
+  public void generateBook() throws IOException {
+    file = Files.createTempFile("connect4", ".book");
+    OpeningBook.generate(file, 6, 7, 2, 4);
+    book = OpeningBook.open(file);
+  }
+
+  @AfterClass
+  public void deleteBook() throws IOException {
+    Files.delete(file);
+  }
+
+  @Test
+  public void shouldCoverEveryPositionWithinPlies() {
+    // per colour to move first: the empty grid, 7 first moves and 7 * 7 replies
+    assertEquals(book.size(), 2 * (1 + 7 + 49));
+    assertEquals(book.getRows(), 6);
+    assertEquals(book.getColumns(), 7);
+    assertEquals(book.getPlies(), 2);
+  }
+
+  @Test
+  public void shouldMatchSearchResults() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(White, 3);
+    grid.addPiece(Black, 2);
+
+    assertEquals(book.lookup(grid, White), new SearchAI(grid, White, 4).findBestColumns());
+  }
+
+  @Test
+  public void shouldMissPositionsOutsideBook() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(White, 3);
+    grid.addPiece(Black, 3);
+    grid.addPiece(White, 3);
+    assertEquals(book.lookup(grid, Black), ColumnSet.EMPTY);
+
+    assertEquals(book.lookup(new ConnectFourGrid(4, 4), Black), ColumnSet.EMPTY);
+  }
+
+  @Test
+  public void shouldPlayFromBookThenDelegate() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    BookAI ai = new BookAI(new EasyAI(grid, Black), book);
+    int best = book.lookup(grid, Black);
+    for (int i = 0; i < AbstractAITest.RETRIES; i++) {
+      assertTrue(ColumnSet.contains(best, ai.chooseColumn()));
+    }
+
+    // out of book, the delegate blocks the win
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    assertEquals(ai.chooseColumn(), 0);
+  }
+
+  @Test
+  public void shouldStopPonderingForBookColumn() throws Exception {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    MaxAI delegate = new MaxAI(grid, Black);
+    BookAI ai = new BookAI(delegate, book);
+    ai.startPondering();
+    assertTrue(ColumnSet.contains(book.lookup(grid, Black), ai.chooseColumnAsync(null).get()));
+    assertFalse(delegate.isPondering());
+  }
+
+  @Test
+  public void shouldConfigureDelegate() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    MaxAI delegate = new MaxAI(grid, Black);
+    BookAI ai = new BookAI(delegate, book);
+    TranspositionTable table = new TranspositionTable(1);
+    AnalysisCache cache = new AnalysisCache(1);
+    ai.setTranspositionTable(table);
+    ai.setAnalysisCache(cache);
+    ai.setMaxChainDepth(2);
+
+    assertSame(delegate.getTranspositionTable(), table);
+    assertSame(delegate.getAnalysisCache(), cache);
+    assertEquals(delegate.getMaxChainDepth(), 2);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void shouldRejectOtherFiles() throws IOException {
+    Path other = Files.createTempFile("connect4", ".txt");
+    try {
+      Files.write(other, "not a book".getBytes("UTF-8"));
+      OpeningBook.open(other);
+    } finally {
+      Files.delete(other);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package id.thrawnca.connect4;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+public class ProofNumberSolverTest {
+
+  @Test
+  public void shouldProveImmediateResults() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+
+    ProofNumberSolver solver = new ProofNumberSolver();
+    assertEquals(solver.solve(grid, White), Outcome.Win);
+
+    // Black can block, but not both of two threats
+    grid.addPiece(White, 1);
+    grid.addPiece(White, 2);
+    grid.addPiece(White, 4);
+    assertEquals(solver.solve(grid, Black), Outcome.Loss);
+  }
+
+  @Test
+  public void shouldAgreeWithEndgameSolver() {
+    Random random = new Random(19);
+    ProofNumberSolver solver = new ProofNumberSolver(ProofNumberSolver.DEFAULT_NODE_LIMIT, 1);
+    EndgameSolver endgame = new EndgameSolver(new TranspositionTable(1));
+    for (int game = 0; game < 100; game++) {
+      ConnectFourGrid grid = new ConnectFourGrid(4, 5);
+      Colour toMove = EndgameSolverTest.randomPosition(grid, random, 6);
+      if (grid.isFull()) continue;
+
+      assertEquals(solver.solve(grid, toMove), endgame.solve(grid, toMove));
+    }
+  }
+
+  @Test
+  public void shouldGiveUpAtNodeLimit() {
+    ProofNumberSolver solver = new ProofNumberSolver(100, 1);
+    assertNull(solver.solve(new ConnectFourGrid(), Black));
+    assertEquals(solver.getNodes(), 101);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectNonPositiveNodeLimit() {
+    new ProofNumberSolver(0, 1);
+  }
+
+}
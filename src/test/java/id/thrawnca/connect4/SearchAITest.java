@@ -0,0 +1,223 @@
+package id.thrawnca.connect4;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour;
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+/**
+ * Verify that the search-based AI finds the same forced wins and losses as
+ * the heuristic AIs.
+ */
+public class SearchAITest extends AbstractAITest {
+
+  @BeforeMethod
+  public void setUp(){
+    super.setUp();
+    ai = new SearchAI(grid, Black);
+  }
+
+  /**
+   * The evaluation favours central columns, so the opening move is not
+   * random.
+   */
+  @Override
+  @Test
+  public void shouldPlayRandomlyByDefault() {
+    assertColumnChoice(3);
+  }
+
+  @Test
+  public void mediumAITests() {
+    detectImmediateWins();
+    detectImmediateLosses();
+    detectAvailableNWay();
+    detectThreatenedNWay();
+    detectBadColumn();
+  }
+
+  @Test
+  public void shouldDetectAvailableConsequentialWin() {
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 1);
+    grid.addPiece(Black, 2);
+    grid.addPiece(White, 3);
+    grid.addPiece(Black, 4);
+
+    grid.addPiece(Black, 0);
+    grid.addPiece(Black, 1);
+    grid.addPiece(White, 2);
+    grid.addPiece(White, 3);
+    grid.addPiece(Black, 4);
+
+    grid.addPiece(White, 1);
+    grid.addPiece(Black, 2);
+    grid.addPiece(Black, 3);
+
+    grid.addPiece(White, 2);
+    grid.addPiece(Black, 3);
+
+    grid.addPiece(White, 3);
+
+    assertColumnChoice(4);
+  }
+
+  @Test
+  public void shouldStopSearchingWhenBudgetExpires() {
+    long start = System.nanoTime();
+    int column = ai.chooseColumn(Duration.ofMillis(200));
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertTrue(column >= 0 && column < grid.getColumns());
+    assertTrue(elapsed < 2000, "Search took " + elapsed + "ms");
+  }
+
+  @Test
+  public void shouldFindWinsWithinBudget() {
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(Black, 3);
+    grid.addPiece(Black, 5);
+
+    for (int i = 0; i < RETRIES; i++) {
+      assertEquals(ai.chooseColumn(Duration.ofMillis(1)), 0);
+    }
+  }
+
+  @Test
+  public void shouldFindSameMovesWithHelperThreads() {
+    ((SearchAI) ai).setThreads(4);
+    mediumAITests();
+  }
+
+  @Test
+  public void shouldStopHelpersWhenBudgetExpires() {
+    ((SearchAI) ai).setThreads(4);
+    shouldStopSearchingWhenBudgetExpires();
+  }
+
+  @Test
+  public void shouldCountHelperNodes() {
+    // without a shared table, the main search matches the single one exactly
+    SearchAI single = new SearchAI(grid, Black, 10);
+    single.setTranspositionTable(null);
+    single.chooseColumn();
+    SearchAI parallel = new SearchAI(grid, Black, 10);
+    parallel.setTranspositionTable(null);
+    parallel.setThreads(3);
+    parallel.chooseColumn();
+
+    assertTrue(single.getNodes() > 0);
+    assertTrue(parallel.getNodes() > single.getNodes(),
+        parallel.getNodes() + " nodes should include helpers' beyond " + single.getNodes());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectNonPositiveThreadCount() {
+    ((SearchAI) ai).setThreads(0);
+  }
+
+  @Test
+  public void shouldOrderColumnsFromCentre() {
+    assertEquals(SearchAI.centreFirst(7), new int[] { 3, 2, 4, 1, 5, 0, 6 });
+    assertEquals(SearchAI.centreFirst(4), new int[] { 1, 2, 0, 3 });
+  }
+
+  @Test
+  public void shouldReportProgressOfEachDepth() throws Exception {
+    final List<Integer> depths = new CopyOnWriteArrayList<Integer>();
+    int column = ai.chooseColumnAsync(Duration.ofMillis(200), new ProgressListener() {
+        public void progress(final int depth, final long nodes, final int column) {
+          assertTrue(nodes > 0);
+          assertTrue(column >= 0 && column < grid.getColumns());
+          depths.add(depth);
+        }
+      }
+    ).get();
+
+    assertTrue(column >= 0 && column < grid.getColumns());
+    assertFalse(depths.isEmpty());
+    for (int i = 0; i < depths.size(); i++) {
+      assertEquals(depths.get(i).intValue(), i + 1);
+    }
+  }
+
+  @Test
+  public void shouldStopPromptlyWhenCancelled() throws Exception {
+    SearchAI deep = new SearchAI(grid, Black, 42);
+    deep.setThreads(2);
+    CompletableFuture<Integer> choice = deep.chooseColumnAsync(null);
+    Thread.sleep(100);
+    assertTrue(choice.cancel(false));
+
+    // the node count is recorded once the search has finished
+    long start = System.nanoTime();
+    while (deep.getNodes() == 0) {
+      assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "Search did not stop");
+      Thread.sleep(10);
+    }
+    assertEquals(grid.getMoveCount(), 0);
+  }
+
+  @Test
+  public void shouldScoreEveryColumn() {
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+
+    Analysis analysis = ((SearchAI) ai).analyse();
+    assertEquals(analysis.getColumns(), (1 << grid.getColumns()) - 1);
+    assertEquals(analysis.getDepth(), SearchAI.DEFAULT_DEPTH);
+    assertEquals(analysis.getBestColumns(), ColumnSet.with(ColumnSet.EMPTY, 0));
+    for (int column = 1; column < grid.getColumns(); column++) {
+      assertEquals(analysis.getOutcome(column), Outcome.Loss);
+      assertTrue(analysis.getScore(column) < analysis.getScore(0));
+    }
+  }
+
+  @Test
+  public void shouldFindSameBestColumnsWhenAnalysing() {
+    grid.addPiece(White, 3);
+    grid.addPiece(Black, 3);
+    grid.addPiece(White, 2);
+
+    assertEquals(new SearchAI(grid, Black, 6).analyse().getBestColumns(),
+        new SearchAI(grid, Black, 6).findBestColumns());
+  }
+
+  @Test
+  public void shouldProveOutcomesOfEveryColumn() {
+    Random random = new Random(6);
+    EndgameSolver solver = new EndgameSolver();
+    for (int game = 0; game < 20; game++) {
+      ConnectFourGrid small = new ConnectFourGrid(4, 5);
+      Colour toMove = EndgameSolverTest.randomPosition(small, random, 8);
+      if (small.isFull()) continue;
+
+      int emptyCells = small.getRows() * small.getColumns() - small.getMoveCount();
+      Analysis analysis = new SearchAI(small, toMove, emptyCells).analyse();
+      Analysis exact = solver.analyse(small, toMove);
+      assertEquals(analysis.getColumns(), exact.getColumns());
+      int columns = exact.getColumns();
+      for (int column = ColumnSet.first(columns); column != -1; column = ColumnSet.next(columns, column)) {
+        assertEquals(analysis.getOutcome(column), exact.getOutcome(column), "Column " + column);
+      }
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void shouldRejectFullColumnsInAnalysis() {
+    for (int row = 0; row < grid.getRows(); row++) grid.addPiece((row % 2 == 0)? White : Black, 0);
+    ((SearchAI) ai).analyse().getScore(0);
+  }
+}
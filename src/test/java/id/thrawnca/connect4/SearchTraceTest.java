@@ -0,0 +1,39 @@
+package id.thrawnca.connect4;
+
+import java.io.StringWriter;
+
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static id.thrawnca.connect4.SearchTrace.Event;
+import static org.testng.Assert.*;
+
+public class SearchTraceTest {
+
+  @Test
+  public void shouldWriteStructuredEventsInOrder() {
+    StringWriter out = new StringWriter();
+    SearchTrace trace = new SearchTrace(out, 16);
+
+    trace.record(Black, Event.Start, Black, -1);
+    trace.record(null, Event.Threat, White, 3);
+    trace.close();
+
+    String[] lines = out.toString().split(System.lineSeparator());
+    assertEquals(lines.length, 2);
+    assertTrue(lines[0].matches("t=-?\\d+ thread=\\S+ ai=Black event=Start colour=Black"), lines[0]);
+    assertTrue(lines[1].matches("t=-?\\d+ thread=\\S+ event=Threat colour=White column=3"), lines[1]);
+  }
+
+  @Test
+  public void shouldIgnoreEventsRecordedAfterClosing() {
+    StringWriter out = new StringWriter();
+    SearchTrace trace = new SearchTrace(out, 16);
+    trace.close();
+
+    trace.record(Black, Event.Threat, Black, 0);
+
+    assertEquals(out.toString(), "");
+  }
+
+}
@@ -0,0 +1,105 @@
+package id.thrawnca.connect4;
+
+import org.testng.annotations.Test;
+
+import static id.thrawnca.connect4.ConnectFourGrid.Colour.*;
+import static org.testng.Assert.*;
+
+public class TranspositionTableTest {
+
+  @Test
+  public void shouldRoundTripEntries() {
+    assertRoundTrip(new TranspositionTable(1));
+  }
+
+  @Test
+  public void shouldRoundTripEntriesOffHeap() {
+    TranspositionTable table = TranspositionTable.offHeap(1);
+    assertTrue(table.isOffHeap());
+    assertRoundTrip(table);
+  }
+
+  private static void assertRoundTrip(final TranspositionTable table) {
+    table.store(42L, 7, -1000123, TranspositionTable.LOWER, 6);
+    long entry = table.probe(42L);
+
+    assertEquals(TranspositionTable.depth(entry), 7);
+    assertEquals(TranspositionTable.score(entry), -1000123);
+    assertEquals(TranspositionTable.bound(entry), TranspositionTable.LOWER);
+    assertEquals(TranspositionTable.move(entry), 6);
+
+    table.store(43L, 0, 5, TranspositionTable.EXACT, -1);
+    assertEquals(TranspositionTable.move(table.probe(43L)), -1);
+    assertEquals(table.probe(44L), 0);
+  }
+
+  @Test
+  public void shouldPreferDeeperResults() {
+    assertReplacement(new TranspositionTable(1));
+  }
+
+  @Test
+  public void shouldPreferDeeperResultsOffHeap() {
+    assertReplacement(TranspositionTable.offHeap(1));
+  }
+
+  private static void assertReplacement(final TranspositionTable table) {
+    // keys whose halves are equal all fall in the first bucket
+    long deep = 1L << 32 | 1, shallow = 2L << 32 | 2, latest = 3L << 32 | 3;
+
+    table.store(deep, 8, 1, TranspositionTable.EXACT, 0);
+    table.store(shallow, 2, 2, TranspositionTable.EXACT, 1);
+    table.store(latest, 1, 3, TranspositionTable.EXACT, 2);
+
+    assertNotEquals(table.probe(deep), 0, "deep result should survive");
+    assertEquals(table.probe(shallow), 0, "shallow result should be replaced");
+    assertNotEquals(table.probe(latest), 0, "latest result should be kept");
+
+    table.clear();
+    assertEquals(table.probe(deep), 0);
+  }
+
+  @Test
+  public void shouldDistinguishColourToMove() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    grid.addPiece(Black, 3);
+
+    assertNotEquals(TranspositionTable.key(grid, Black), TranspositionTable.key(grid, White));
+  }
+
+  @Test
+  public void shouldDistinguishGridSizes() {
+    // the same piece is on the same bitboard bit of both grids
+    ConnectFourGrid narrow = new ConnectFourGrid(4, 4);
+    ConnectFourGrid wide = new ConnectFourGrid(4, 5);
+    narrow.addPiece(Black, 0);
+    wide.addPiece(Black, 0);
+
+    assertEquals(narrow.hashKey(), wide.hashKey());
+    assertNotEquals(TranspositionTable.key(narrow, White), TranspositionTable.key(wide, White));
+  }
+
+  @Test
+  public void shouldLimitSize() {
+    assertEquals(new TranspositionTable(1).getSize(), 1 << 20);
+    assertEquals(new TranspositionTable(3).getSize(), 2 << 20);
+    assertEquals(TranspositionTable.offHeap(3).getSize(), 2 << 20);
+  }
+
+  @Test
+  public void shouldBeSharedBetweenAIs() {
+    ConnectFourGrid grid = new ConnectFourGrid();
+    TranspositionTable table = TranspositionTable.offHeap(1);
+    SearchAI black = new SearchAI(grid, Black, 6);
+    SearchAI white = new SearchAI(grid, White, 6);
+    black.setTranspositionTable(table);
+    white.setTranspositionTable(table);
+
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    grid.addPiece(White, 0);
+    assertEquals(black.chooseColumn(), 0);
+    assertEquals(white.chooseColumn(), 0);
+  }
+
+}